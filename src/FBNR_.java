@@ -24,8 +24,16 @@ import ij.plugin.filter.*;
 import ij.plugin.frame.*;
 import ij.plugin.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import javax.swing.Timer;
 import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
 
 public class FBNR_ implements PlugInFilter {
 
@@ -33,15 +41,42 @@ public class FBNR_ implements PlugInFilter {
   // Global declarations
   ////////////////////////////////////////////////////////////////
   // Images
-  private ImagePlus imp, imBlock, imResult;
+  private ImagePlus imp, imResult, imDiagnostics;
   // Processors
-  private ImageProcessor ipBlock, ipResult;
+  private ImageProcessor ipResult;
+  // Catch errors for reporting
+  private boolean FBNR_error = false, FBNR_warning = false;
+  // Blocks of this run with counts in them, and those failed and homogeneous
+  private long runBlocks, runFailed, runHomogeneous;
+  // Offsets (n, p) to scan over all block sizes, and how many were done
+  private int scanOffsets, completedOffsets;
   // Logging
   private boolean logging, canUpdate;
   // Look up tables for referencing rows and columns in the fourier transform
   private int[] refRow, refCol;
-  // Set up a rectangle for the fourier transform
-  private Rectangle rect = new Rectangle();
+  // Number of contributions to each pixel, if they are not all equal
+  private float[] pixWeight;
+  // Padding all round the working copies of the image, the largest block
+  // side, so blocks over the edges need no checks
+  private int pad;
+  // Sums of the outcome of every block covering each pixel, if wanted
+  private float[][] pixDiagnostics;
+  // What each of the diagnostic maps shows, see blockBatch.scatterDiagnostics
+  static final String[] DIAGNOSTICS = {"Iterations", "Filter change", "Scale",
+    "Not converged", "Homogeneous"};
+  // Blocks seen, to pick out the ones recorded by the flight recorder
+  private AtomicLong sampledBlocks = new AtomicLong();
+  // Work of this run on the scheduler shared by every run
+  private fbnrScheduler.job job;
+  // Block sizes used by the adaptive mode, largest first.  A block costs
+  // blockSide^3 per iteration and needs about blockSide times as many
+  // iterations, so 16x16 blocks would cost more than the 4x4 ones they
+  // replace, and most of them do not converge within the iterations allowed.
+  static final int[] ADAPTIVE_SIDES = {8, 4};
+  // Spacing of the scan offsets for each adaptive block size.  Flat regions
+  // need little overlap to average out block edges, so the bigger blocks
+  // are only offset by half a block.
+  static final int[] ADAPTIVE_STEPS = {4, 1};
 
   public int setup(String arg, ImagePlus imp) {
     // Convert image to 32 bit float type before assigning processor
@@ -52,23 +87,18 @@ public class FBNR_ implements PlugInFilter {
   }
 
   public void run(ImageProcessor ip) {
-    // Indices
-    int i, startI, startJ, j, m, n, p;
     // The length of side of the processing block
     int blockSide;
     // Maximum number of iterations before meltdown
     int maxIterations;
     // Floats to hold pixel values
-    float[] pixFilter, pixFilterPrev, pixBlock, pixResult;
-    // Catch errors for reporting
-    boolean FBNR_error = false, FBNR_warning = false;
+    float[] pixResult;
+    // Derive the filters from the summed frames of a dynamic study
+    boolean dynamic = false;
 
     // get pixel array of the main image
     float[] pixIm = (float[]) ip.getPixels();
 
-    // Set up the variance class (like C struct)
-    variance var = new variance();
-
     // Collect some options from the dialogue box (or args)
     GenericDialog FBNR_Opts = doDialogue();
     FBNR_Opts.showDialog();
@@ -82,10 +112,15 @@ public class FBNR_ implements PlugInFilter {
       String progressFile = progressReport();
 
       // Set block size
-      if (FBNR_Opts.getNextChoice() == "4x4") {
+      String blockChoice = FBNR_Opts.getNextChoice();
+      boolean adaptive = blockChoice.equals("Adaptive");
+      if (blockChoice.equals("4x4")) {
         blockSide = 4;
-      } else {
+      } else if (blockChoice.equals("8x8")) {
         blockSide = 8;
+      } else {
+        // Adaptive counts the contributions to each pixel instead
+        blockSide = ADAPTIVE_SIDES[0];
       }
       int blockSize = (int) Math.pow(blockSide, 2);
 
@@ -96,137 +131,187 @@ public class FBNR_ implements PlugInFilter {
       // to be too high?
       float changeRate = (float) FBNR_Opts.getNextNumber();
 
+      // Seconds allowed for the scan, none if zero.  The frames of a
+      // dynamic study are filtered after the scan, however long they take.
+      double timeBudget = FBNR_Opts.getNextNumber();
+
       // Choose whether to show log output (very slow)
       logging = FBNR_Opts.getNextBoolean();
 
-      //Set up the reference tables
-      refRow = new int[(int) Math.pow(2 * blockSide, 2)];
-      refCol = new int[(int) Math.pow(2 * blockSide, 2)];
-      setUpLookUpTables(blockSide);
-
-      // Setup the block, result and the filter images
-      pixBlock = makeBlockImage(blockSide);
-      pixResult = makeResultImage();
-      pixFilter = makeFilterArray(blockSide);
-      pixFilterPrev = new float[4 * blockSize];
-
-      i = 125;//12,60,80,48
-      j = 61;//50,50,40,60
-
-      // Scan the image a total of blocksize times and take an average
-      // after each scan, the "startscan" place needs to be incremented
-      for (n = 0; n < blockSide; n++) {
-        if (logging) {
-          IJ.log(Integer.toString(n));
+      // Maps of how each area converged, a fast alternative to the log
+      boolean diagnostics = FBNR_Opts.getNextBoolean();
+
+      // Keep a checkpoint to resume from if the run dies
+      boolean checkpointed = FBNR_Opts.getNextBoolean();
+
+      // Dynamic studies only offer the summed frame option
+      if (imp.getStackSize() > 1) {
+        dynamic = FBNR_Opts.getNextBoolean();
+      }
+
+      // Wait for other runs to free enough memory for this one
+      fbnrScheduler scheduler = fbnrScheduler.get();
+      long memory = runMemory(adaptive ? ADAPTIVE_SIDES : new int[]{blockSide},
+              dynamic, diagnostics);
+      if (!scheduler.admit(memory)) {
+        timer.stop();
+        canUpdate = true;
+        updateProgress(progressFile, 100);
+        IJ.showMessage("FBNR", "Interrupted while waiting for memory used " +
+                "by other runs.\nThe image has not been filtered");
+        return;
+      }
+
+      // From here on the memory claimed must be given back, however the
+      // run ends
+      fbnrMetrics metrics = null;
+      runEvent event = null;
+      scanCheckpoint checkpoint = null;
+      try {
+        job = scheduler.join();
+
+        // Let the flight recorder and the JMX metrics see the run
+        metrics = fbnrMetrics.get();
+        metrics.runStarted();
+        if (fbnrMetrics.EVENTS) {
+          event = new runEvent();
+          event.begin();
+        }
+
+        // The individual frames of a dynamic study have too few counts to
+        // converge, so run the full filter on the summed image and record
+        // the filter that each block settled on
+        float[] pixScan = dynamic ? sumFrames() : pixIm;
+
+        // Block sizes to scan with, and the regions each one covers
+        int[] sides = {blockSide};
+        // Adaptive regions use fewer offsets for the bigger blocks,
+        // otherwise every offset within the block is scanned
+        int[] steps = {1};
+        int[] sideMap = null;
+        if (adaptive) {
+          sides = ADAPTIVE_SIDES;
+          steps = ADAPTIVE_STEPS;
+          sideMap = splitRegions(pixScan, sides[0], sides[sides.length - 1]);
+        }
+
+        // Work on a copy of the image with mirrored borders, so that every
+        // pixel, edges included, is covered by every offset of the blocks
+        pad = sides[0];
+        float[] pixPadded = padImage(pixScan);
+        if (adaptive || timeBudget > 0) {
+          // Regions of different block size overlap at their boundaries, and
+          // a scan cut short covers some pixels more than others, so keep
+          // count of the contributions each pixel receives
+          pixWeight = new float[pixPadded.length];
+        }
+
+        if (diagnostics) {
+          pixDiagnostics = new float[DIAGNOSTICS.length][pixPadded.length];
+        }
+
+        pixResult = new float[pixPadded.length];
+        filterMap[] maps = new filterMap[sides.length];
+        if (dynamic) {
+          for (int s = 0; s < sides.length; s++) {
+            maps[s] = new filterMap(sides[s], steps[s], imp.getWidth(),
+                    imp.getHeight());
+          }
+        }
+        // Pick up from the last checkpoint of the same job, if it died
+        int[] passes = new int[sides.length];
+        for (int s = 0; s < sides.length; s++) {
+          passes[s] = scanOrder(sides[s], steps[s], timeBudget > 0).length / 2;
+        }
+        long key = checkpointKey(blockChoice + ";" + maxIterations + ";" +
+                changeRate + ";" + (timeBudget > 0) + ";" + dynamic + ";" +
+                diagnostics, pixScan, dynamic);
+        File checkpointFile = null;
+        if (checkpointed) {
+          checkpointFile = new File(System.getProperty("java.io.tmpdir"),
+                  "FBNR_" + Long.toHexString(key) + ".ckpt");
+        }
+        float[][] accumulators = scanAccumulators(pixResult);
+        checkpoint = new scanCheckpoint(checkpointFile, key, passes,
+                pixResult.length, accumulators.length, maps,
+                dynamic ? imp.getStackSize() : 0, pixScan.length);
+        if (checkpointed && !checkpoint.isActive()) {
+          IJ.log("FBNR: " + checkpointFile + " is in use by another run of " +
+                  "the same job, " + imp.getTitle() + " is not checkpointed");
+        }
+        long[] counts = checkpoint.resume(accumulators, maps);
+        if (counts != null) {
+          runBlocks = counts[0];
+          runFailed = counts[1];
+          runHomogeneous = counts[2];
+          FBNR_error = counts[3] != 0;
+          FBNR_warning = counts[4] != 0;
+          IJ.log("FBNR: resuming " + imp.getTitle() + " from " +
+                  checkpointFile + ", " + checkpoint.passesDone() +
+                  " passes done");
+        }
+
+        scanImage(pixPadded, pixResult, sides, steps, sideMap, maxIterations,
+                changeRate, maps, timeBudget, checkpoint, progressFile,
+                dynamic ? 50 : 100);
+
+        if (dynamic) {
+          // Then apply the stored filters to every frame, once the filters
+          // are safe in the checkpoint.  They already are if the whole scan
+          // was resumed, and the save does nothing.
+          checkpoint.save(accumulators, maps, runCounts(), true);
+          makeResultImage(imp.getStackSize());
+          applyFilterMapsToFrames(maps, checkpoint, progressFile, 50, 50);
+        } else {
+          addCropped(pixResult, makeResultImage(1));
         }
-        startI = -1 * (blockSide - 1 - n);
-        for (p = 0; p < blockSide; p++) {
-          startJ = -1 * (blockSide - 1 - p);
-          // Scan y axis of image
-          for (j = startJ; j < imp.getHeight() + startJ; j += blockSide) {
-            //Scan x-axis of image
-            for (i = startI; i < imp.getWidth() + startI; i += blockSide) {
-              if (logging) {
-                String message = "n = " + n + ", startI = " +
-                        startI + ", i = " + i;
-                IJ.log(message);
-              }
-
-              // Fill the block with values from the main image
-              var = setBlockValues(i, j, blockSide, pixIm, pixBlock, var, true);
-
-              // Estimate the variance of the block for the first time
-              var = getBlockVariance(var, true);
-
-              if (logging) {
-                IJ.log("---------------------------------------------");
-                IJ.log("Block variance = " + Double.toString(var.tot0));
-                IJ.log("Block noise = " + Double.toString(var.noise));
-                IJ.log("Block max = " + Double.toString(var.max));
-                IJ.log("---------------------------------------------");
-              }
-
-              float change = (float) 1 / blockSide;
-              // Iterate the filter until it is correct to the nearest...
-              boolean continu = true;
-              if (var.max > 0) {
-                if (var.tot0 < var.noise) {
-                  // This will never converge! Keep the original values
-                  // and display a warning
-                  FBNR_warning = true;
-                } else {
-                  m = 0;       // to track the number of iterations
-
-                  // Prevent the loop going into meltdown by limiting
-                  // the number of iterations.
-                  while (continu) {
-                    // Fill the block with values from the main image
-                    setBlockValues(i, j, blockSide, pixIm,
-                            pixBlock, var, false);
-                    // Save the previous filter
-                    System.arraycopy(pixFilter, 0, pixFilterPrev, 0,
-                            pixFilter.length);
-                    // Edit the filter
-                    pixFilter = changeFilterArray(pixFilter, blockSide, change);
-                    // Filter the block
-                    filterImage(pixFilter, blockSide);
-                    //for (l=0; l<16; l++) {
-                    //    IJ.log("Filter: " + Float.toString(pixFilter[l])
-                    //    + "Previous: " + Float.toString(pixFilterPrev[l]));
-                    //}
-                    // Recalculate variance
-                    var = getBlockVariance(var, false);
-                    m++;
-                    // Show log
-                    if (logging) {
-                      IJ.log("Iteration: " + Integer.toString(m) +
-                              "  Change = " + Float.toString(change) +
-                              " i=" + Integer.toString(i));
-                      IJ.log("Block variance = " + Double.toString(var.tot));
-                      IJ.log("Block noise = " + Double.toString(var.noise));
-                      IJ.log("Block residual = " + Double.toString(var.res));
-                    }
-                    // When the residual is larger than the noise we have
-                    // reached a point where we need to condsider what's to
-                    // be done.
-                    // Should the loop terminate?
-                    if (var.res > var.noise) {
-                      // change the change!
-                      change = change / changeRate;
-                      // Reset the filter to the previous value
-                      // (ie where noise > res)
-                      System.arraycopy(pixFilterPrev, 0, pixFilter, 0,
-                              pixFilterPrev.length);
-                    }
-                    if (Math.abs(var.res - var.noise) < 0.1) {
-                      continu = false;
-                    }
-                    if (m >= maxIterations) {
-                      continu = false;
-                      FBNR_error = true;
-                      if (logging) {
-                        String strError = "No convergance at i=" +
-                                i + ", j=" + j;
-                        IJ.log(strError);
-                      }
-                    }
-                  }
-                }
-
-                // Shove the block back into the image now that the
-                // noise has gone!
-                pushBlock(i, j, blockSide, pixResult, pixBlock, var);
-                // Reset the filter or we'll be in all sorts of bother
-                pixFilter = resetFilterArray(pixFilter);
-              }
-            } // i
-          }  // j
-          updateProgress(progressFile, (int) 100 * (p + n * blockSide) *
-                  imp.getHeight() / (blockSize * imp.getHeight()));
-        } //p
-      }  //n
-      // Finalise the image
-      finaliseImage(blockSize);
+        checkpoint.close(true);
+
+        // Drop the padding from the weights and diagnostics
+        if (pixWeight != null) {
+          float[] pixCropped = new float[pixScan.length];
+          addCropped(pixWeight, pixCropped);
+          pixWeight = pixCropped;
+        }
+        if (pixDiagnostics != null) {
+          for (int d = 0; d < DIAGNOSTICS.length; d++) {
+            float[] pixCropped = new float[pixScan.length];
+            addCropped(pixDiagnostics[d], pixCropped);
+            pixDiagnostics[d] = pixCropped;
+          }
+        }
+
+        // Finalise the image, after the diagnostics so it ends up in front
+        if (diagnostics) {
+          finaliseDiagnostics(blockSize);
+        }
+        finaliseImage(blockSize);
+      } finally {
+        if (checkpoint != null) {
+          checkpoint.close(false);
+        }
+        // Record the run even if it failed part way
+        if (event != null) {
+          event.image = imp.getTitle();
+          event.width = imp.getWidth();
+          event.height = imp.getHeight();
+          event.frames = dynamic ? imp.getStackSize() : 1;
+          event.blockSize = blockChoice;
+          event.blocks = runBlocks;
+          event.failedBlocks = runFailed;
+          event.homogeneousBlocks = runHomogeneous;
+          event.offsets = scanOffsets;
+          event.completedOffsets = completedOffsets;
+          event.commit();
+        }
+        if (metrics != null) {
+          metrics.runFinished();
+        }
+        if (job != null) {
+          job.leave();
+        }
+        scheduler.release(memory);
+      }
       if (FBNR_error & !logging) {
         IJ.showMessage("FBNR Error!", "Errors have occurred.\n" +
                 "Try logging mode or more iterations");
@@ -235,443 +320,757 @@ public class FBNR_ implements PlugInFilter {
         IJ.showMessage("Warning!", "Some areas have not been " +
                 "filtered due to input homogeniety");
       }
+      if (completedOffsets < scanOffsets) {
+        IJ.showMessage("Time budget", "The time ran out after " +
+                completedOffsets + " of " + scanOffsets + " block offsets.\n" +
+                "The result is the average of the offsets completed");
+      }
       canUpdate = true;
       updateProgress(progressFile, 100);
 
     }
   }
 
-  GenericDialog doDialogue() {
-    GenericDialog FBNR_Opts = new GenericDialog("FBNR options");
+  // Run the iterative filter over the whole image with every block size.
+  // Offsets of the scan are taken every step pixels.  If a side map is
+  // given only blocks touching the pixels assigned to each block size are
+  // filtered.  If filter maps are given, the converged filter change of
+  // every block is recorded in them.  With a time budget the offsets are
+  // scanned one at a time, coarse to fine, until the time runs out; the
+  // budget only covers this scan, not the frames filtered after it.  Passes
+  // already in the checkpoint are skipped, and the scan is checkpointed as
+  // it goes.
+  void scanImage(float[] pixIm, float[] pixResult, int[] sides, int[] steps,
+          int[] sideMap, int maxIterations, float changeRate, filterMap[] maps,
+          double timeBudget, scanCheckpoint checkpoint, String progressFile,
+          int progressSpan) {
+    boolean anytime = timeBudget > 0;
+    long deadline = System.nanoTime() + (long) (timeBudget * 1e9);
+
+    // The passes of each block size in the order they are scanned, with its
+    // reference tables and the running count of the pixels in its regions
+    int[][] passes = new int[sides.length][];
+    int[] done = new int[sides.length];
+    int[][] regionCount = new int[sides.length][];
+    int[][] rows = new int[sides.length][];
+    int[][] cols = new int[sides.length][];
+    int totalPasses = 0;
+    scanOffsets = 0;
+    completedOffsets = 0;
+    for (int s = 0; s < sides.length; s++) {
+      passes[s] = scanOrder(sides[s], steps[s], anytime);
+      totalPasses += passes[s].length / 2;
+      int offsets = (sides[s] - 1 - (sides[s] - 1) % steps[s]) / steps[s] + 1;
+      scanOffsets += offsets * offsets;
+      if (sideMap != null) {
+        regionCount[s] = countRegion(sideMap, sides[s]);
+      }
+      //Set up the reference tables
+      setUpLookUpTables(sides[s]);
+      rows[s] = refRow;
+      cols[s] = refCol;
+    }
 
-    String[] blockOpts = new String[2];
-    blockOpts[0] = "4x4";
-    blockOpts[1] = "8x8";
+    for (int completed = 0; completed < totalPasses; completed++) {
+      // The block size furthest behind goes next, so with a time budget
+      // all the sizes are refined together
+      int s = -1;
+      for (int t = 0; t < sides.length; t++) {
+        if (done[t] < passes[t].length / 2 && (s < 0 ||
+                (long) done[t] * passes[s].length <
+                (long) done[s] * passes[t].length)) {
+          s = t;
+        }
+      }
+      // The first pass of every size always runs, so no pixel is left out
+      if (anytime && done[s] > 0 && System.nanoTime() > deadline) {
+        break;
+      }
+      int n = passes[s][2 * done[s]];
+      int p = passes[s][2 * done[s] + 1];
+      if (!checkpoint.passDone(s, done[s])) {
+        scanPass(pixIm, pixResult, sides[s], steps[s], n, p, regionCount[s],
+                rows[s], cols[s], maxIterations, changeRate, maps[s]);
+        checkpoint.passFinished(s, done[s]);
+        checkpoint.save(scanAccumulators(pixResult), maps, runCounts(),
+                false);
+      }
+      done[s]++;
+      int offsets = (sides[s] - 1 - (sides[s] - 1) % steps[s]) / steps[s] + 1;
+      completedOffsets += n < 0 ? offsets : 1;
+      updateProgress(progressFile,
+              progressSpan * (completed + 1) / totalPasses);
+    }
+  }
 
-    FBNR_Opts.addChoice("Block size", blockOpts, "4x4");
-    FBNR_Opts.addNumericField("Max iterations per block", 50, 0);
-    FBNR_Opts.addNumericField("Rate of change of filter", 5, 0);
-    FBNR_Opts.addCheckbox("Enable logging (slow)", false);
+  // Offsets (n, p) of the scan in the order they are taken, in pairs.
+  // Normally all the offsets across the image are walked together (n = -1)
+  // for each offset down it.  The anytime scan takes one offset at a time,
+  // starting with the unshifted blocks, then the offsets half a block away,
+  // a quarter and so on, so wherever it stops the offsets are spread evenly.
+  int[] scanOrder(int blockSide, int step, boolean anytime) {
+    int first = (blockSide - 1) % step;
+    int offsets = (blockSide - 1 - first) / step + 1;
+    if (!anytime) {
+      int[] order = new int[2 * offsets];
+      for (int k = 0; k < offsets; k++) {
+        order[2 * k] = -1;
+        order[2 * k + 1] = first + k * step;
+      }
+      return order;
+    }
 
-    return FBNR_Opts;
+    // Offsets are counted back from the unshifted one, whose blocks line up
+    // with the edges of the image
+    int[] order = new int[2 * offsets * offsets];
+    boolean[] taken = new boolean[offsets * offsets];
+    int k = 0;
+    for (int spacing = Integer.highestOneBit(offsets); spacing > 0;
+            spacing /= 2) {
+      for (int y = 0; y < offsets; y += spacing) {
+        for (int x = 0; x < offsets; x += spacing) {
+          if (!taken[x + y * offsets]) {
+            taken[x + y * offsets] = true;
+            order[k++] = blockSide - 1 - x * step;
+            order[k++] = blockSide - 1 - y * step;
+          }
+        }
+      }
+    }
+    return order;
   }
 
-  void finaliseImage(int blockSize) {
-    // Rescale pixel values to make image an average, not a sum
-    ipResult.multiply((float) 1 / blockSize);
-    // Remove any pixel values below zero
-    ipResult.min(0);
-
-    // Show the image
-    imResult.show();
+  // Scan the image once for the offset p of the blocks down the image and
+  // offset n across it, or all the offsets across it if n is negative.
+  // All the blocks along each band of rows are walked together, moving the
+  // block one pixel at a time.  The bands are shared out to the workers.
+  void scanPass(final float[] pixIm, final float[] pixResult,
+          final int blockSide, int step, int n, final int p, int[] regionCount,
+          final int[] rowTable, final int[] colTable, final int maxIterations,
+          final float changeRate, final filterMap map) {
+    if (logging) {
+      IJ.log(Integer.toString(p));
+    }
+    passEvent pass = null;
+    if (fbnrMetrics.EVENTS) {
+      pass = new passEvent();
+      pass.begin();
+    }
+    // Blocks of the pass with counts in them, failed and homogeneous
+    final long[] passCounts = new long[3];
+    // Every block position along a band is processed as one batch.  The
+    // batches are handed from band to band, one for each band going at once.
+    final ConcurrentLinkedQueue<blockBatch> batches =
+            new ConcurrentLinkedQueue<blockBatch>();
+    int startJ = -1 * (blockSide - 1 - p);
+    ArrayList<Future<?>> bands = new ArrayList<Future<?>>();
+    // Scan y axis of image, blocks over its edges take in the padding
+    for (int j = startJ; j < imp.getHeight(); j += blockSide) {
+      final int band = j;
+      final int[] columns = new int[imp.getWidth() + blockSide - 1];
+      final int count = bandColumns(blockSide, step, n, regionCount, j,
+              columns);
+      // Bands with no blocks of this size need no column transforms
+      if (count == 0) {
+        continue;
+      }
+      bands.add(job.submit(new Runnable() {
+
+        public void run() {
+          blockBatch batch = batches.poll();
+          if (batch == null) {
+            batch = new blockBatch(blockSide, rowTable, colTable,
+                    imp.getWidth() + blockSide - 1, pad);
+          }
+          scanBand(pixIm, pixResult, batch, band, columns, count, p,
+                  maxIterations, changeRate, map, passCounts);
+          batches.add(batch);
+        }
+      }));
+    }
+    waitFor(bands);
+    if (pass != null) {
+      pass.blockSide = blockSide;
+      pass.columnOffset = n;
+      pass.offset = p;
+      pass.blocks = passCounts[0];
+      pass.failedBlocks = passCounts[1];
+      pass.homogeneousBlocks = passCounts[2];
+      pass.commit();
+    }
+    runBlocks += passCounts[0];
+    runFailed += passCounts[1];
+    runHomogeneous += passCounts[2];
+  }
 
-    // Get max value to set contast
-    ImageStatistics stat = imResult.getStatistics();
-    ipResult.setMinAndMax(0, stat.max);
+  // Filter the blocks starting at the given columns of band j of the
+  // padded image and add them into the result, counting them in the pass.
+  // Bands do not overlap, so several can run at once.
+  void scanBand(float[] pixIm, float[] pixResult, blockBatch batch, int j,
+          int[] columns, int count, int p, int maxIterations, float changeRate,
+          filterMap map, long[] passCounts) {
+    int blockSide = batch.blockSide();
+    int width = imp.getWidth() + 2 * pad;
+    batch.gather(pixIm, width, j, columns, count);
+    batch.converge(maxIterations, changeRate, logging);
+    // Shove the blocks back into the image now that the noise has gone!
+    batch.scatter(pixResult, pixWeight, width);
+    if (pixDiagnostics != null) {
+      batch.scatterDiagnostics(pixDiagnostics, width);
+    }
+    fbnrMetrics.get().recordBatch(batch, true);
 
-    imResult.updateAndRepaintWindow();
+    long blocks = 0, failed = 0, homogeneous = 0;
+    for (int b = 0; b < count; b++) {
+      if (batch.state(b) == blockBatch.EMPTY) {
+        continue;
+      }
+      blocks++;
+      if (batch.state(b) == blockBatch.FAILED) {
+        FBNR_error = true;
+        failed++;
+      } else if (batch.state(b) == blockBatch.HOMOGENEOUS) {
+        // Some blocks never converge and keep their original values
+        FBNR_warning = true;
+        homogeneous++;
+      }
+      if (fbnrMetrics.EVENTS &&
+              sampledBlocks.incrementAndGet() % fbnrMetrics.BLOCK_SAMPLE == 0) {
+        recordBlock(batch, b, j, blockSide);
+      }
+      // Remember where the filter ended up for this block
+      if (map != null) {
+        int offset = (columns[b] + blockSide - 1) % blockSide;
+        map.set(offset, p, columns[b], j, batch.totalChange(b));
+      }
+    }
+    synchronized (passCounts) {
+      passCounts[0] += blocks;
+      passCounts[1] += failed;
+      passCounts[2] += homogeneous;
+    }
   }
 
-  // Copy values from the main image into the processing block
-  variance setBlockValues(int i, int j, int blockSide, float pixIm[],
-          float pixBlock[], variance var, boolean first) {
+  // Wait for tasks of this run, passing on the first failure
+  void waitFor(ArrayList<Future<?>> tasks) {
+    waitFor(tasks, null, 0, 0);
+  }
 
-    // Get pixel values within the block
-    for (int l = 0; l < blockSide; l++) {      // y values
-      for (int k = 0; k < blockSide; k++) {    // x-values
-        // Assign the pixel values to the block image - only values within
-        // the image are allowed to be copied, otherwise force to zero
-        if (i >= 0 & j >= 0 & i < imp.getWidth() & j < imp.getHeight()) {
-          pixBlock[k + l * blockSide] = pixIm[i + k + (j + l) * imp.getWidth()];
-        } else {
-          pixBlock[k + l * blockSide] = 0;
+  // Wait for tasks of this run (null for work already done), moving the
+  // progress on as each one finishes.  On the first failure the tasks not
+  // yet started are dropped and the ones running are waited for, so
+  // nothing is still writing to the images once the failure is passed on.
+  void waitFor(ArrayList<Future<?>> tasks, String progressFile,
+          int progressStart, int progressSpan) {
+    try {
+      for (int t = 0; t < tasks.size(); t++) {
+        if (tasks.get(t) != null) {
+          tasks.get(t).get();
+        }
+        if (progressFile != null) {
+          updateProgress(progressFile, progressStart +
+                  progressSpan * (t + 1) / tasks.size());
         }
-      } // k
-    }   // l
-
-    if (first) {
-      // Ramp up the grey levels of low count areas or accentuate differences
-      // of homogeneous areas where the noise is greater than the variance
-      ImageStatistics stat = imBlock.getStatistics();
-      var.max = stat.max;
-
-      // scale image by 100 for low count areas to reduce amount
-      // of negative pixels
-      if (var.max < 25) {
-        var.scale = (double) 100;
-        ipBlock.multiply(var.scale);
-      } else {
-        var.scale = (double) 1;
       }
+    } catch (InterruptedException e) {
+      abandon(tasks);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("FBNR was interrupted", e);
+    } catch (ExecutionException e) {
+      abandon(tasks);
+      throw new RuntimeException("FBNR failed", e.getCause());
+    }
+  }
 
-      //Reload stats - in case it's a low count area - before testing
-      stat = imBlock.getStatistics();
-      // Scale the image up to 1000 times in an attempt
-      // to accentuate differences
-      while ((Math.pow(stat.stdDev, 2) < stat.mean) & var.scale < 1000) {
-        var.scale = var.scale * 10;
-        ipBlock.multiply(10);
-        stat = imBlock.getStatistics();
+  // Drop the tasks not started and wait for the rest to stop
+  void abandon(ArrayList<Future<?>> tasks) {
+    job.cancelQueued();
+    boolean interrupted = Thread.interrupted();
+    for (Future<?> task : tasks) {
+      while (task != null && !task.isCancelled()) {
+        try {
+          task.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (Exception e) {
+          break;
+        }
       }
-
-    } else {
-      ipBlock.multiply(var.scale);
     }
-
-    return var;
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
   }
 
-  // Copy values from the processing block into the main image
-  void pushBlock(int i, int j, int blockSide, float[] pixResult,
-          float[] pixBlock, variance var) {
-
-    // Rescale the image
-    ipBlock.multiply((double) (1 / var.scale));
+  // Record the outcome of one block for the flight recorder
+  void recordBlock(blockBatch batch, int b, int j, int blockSide) {
+    blockEvent event = new blockEvent();
+    if (event.shouldCommit()) {
+      event.x = batch.column(b);
+      event.y = j;
+      event.blockSide = blockSide;
+      event.iterations = batch.iterations(b);
+      event.totalChange = batch.totalChange(b);
+      switch (batch.state(b)) {
+        case blockBatch.HOMOGENEOUS:
+          event.outcome = "Homogeneous";
+          break;
+        case blockBatch.FAILED:
+          event.outcome = "No convergence";
+          break;
+        default:
+          event.outcome = "Converged";
+      }
+      event.commit();
+    }
+  }
 
-    // Get pixel values within the block (assuming they are
-    // within the image proper)
-    for (int l = 0; l < blockSide; l++) {      // y values
-      for (int k = 0; k < blockSide; k++) {    // x-values
-        if (i >= 0 & j >= 0 & i < imResult.getWidth() &
-                j < imResult.getHeight()) {
-          // Assign the pixel values to the image
-          pixResult[i + k + (j + l) * imResult.getWidth()] +=
-                  pixBlock[k + l * blockSide];
-        }  // else do nothing
-      } // k
-    }   // l
+  // Find the columns where the blocks of a band start, in sliding order.
+  // Each column belongs to one offset across the image (n), which must be
+  // one of the offsets scanned, or the given one if that is not negative.
+  // Blocks start up to blockSide - 1 pixels left of the image, so every
+  // offset covers the whole band.  Blocks that only touch other block
+  // sizes' regions are left out.
+  int bandColumns(int blockSide, int step, int offset, int[] regionCount,
+          int j, int[] columns) {
+    int first = (blockSide - 1) % step;
+    int count = 0;
+    for (int i = 1 - blockSide; i < imp.getWidth(); i++) {
+      int n = (i + blockSide - 1) % blockSide;
+      if ((n - first) % step != 0 || (offset >= 0 && n != offset)) {
+        continue;
+      }
+      if (regionCount != null && !inRegion(regionCount, i, j, blockSide)) {
+        continue;
+      }
+      columns[count++] = i;
+    }
+    return count;
   }
 
-  // Calculate the variance of a block
-  variance getBlockVariance(variance var, boolean first) {
+  // Split the image into square regions, quadtree fashion, starting from
+  // the largest block size.  A region is split in four while its counts
+  // are not consistent with Poisson noise about a flat mean, so flat areas
+  // keep big blocks and edges get small ones.  Returns the block side to
+  // use for every pixel.
+  int[] splitRegions(float[] pixIm, int largest, int smallest) {
+    int[] sideMap = new int[pixIm.length];
+    for (int y = 0; y < imp.getHeight(); y += largest) {
+      for (int x = 0; x < imp.getWidth(); x += largest) {
+        splitRegion(pixIm, sideMap, x, y, largest, smallest);
+      }
+    }
+    return sideMap;
+  }
 
-    // Let ImageJ calculate the statistics
-    ImageStatistics stat = imBlock.getStatistics();
-    // Integer value "first" instructs the function that values should
-    // be stored differently
-    var.tot = Math.pow(stat.stdDev, 2);
-    if (first) {
-      // Noise in the sub block is estimated as the mean value
-      var.noise = stat.mean;
-      var.tot0 = var.tot;
+  void splitRegion(float[] pixIm, int[] sideMap, int x, int y, int side,
+          int smallest) {
+    int width = imp.getWidth();
+    int xEnd = Math.min(x + side, width);
+    int yEnd = Math.min(y + side, imp.getHeight());
+
+    if (side > smallest && !isFlat(pixIm, x, y, xEnd, yEnd)) {
+      int half = side / 2;
+      for (int l = 0; l < 2; l++) {
+        for (int k = 0; k < 2; k++) {
+          if (x + k * half < xEnd && y + l * half < yEnd) {
+            splitRegion(pixIm, sideMap, x + k * half, y + l * half, half,
+                    smallest);
+          }
+        }
+      }
     } else {
-      // Residual value is difference between the initial blcok variance
-      // and the current. This is meaningless unless tot0 has been explicitly
-      // set during the program.
-      var.res = var.tot0 - var.tot;
+      for (int l = y; l < yEnd; l++) {
+        for (int k = x; k < xEnd; k++) {
+          sideMap[k + l * width] = side;
+        }
+      }
     }
+  }
 
-    return var;
+  // Is the variance of the region no more than Poisson noise would give?
+  // For Poisson counts variance / mean is 1, with a standard error of
+  // sqrt(2 / (n - 1)), so allow two standard errors above that.
+  boolean isFlat(float[] pixIm, int x, int y, int xEnd, int yEnd) {
+    int count = (xEnd - x) * (yEnd - y);
+    double sum = 0, sum2 = 0;
+    for (int l = y; l < yEnd; l++) {
+      for (int k = x; k < xEnd; k++) {
+        double value = pixIm[k + l * imp.getWidth()];
+        sum += value;
+        sum2 += value * value;
+      }
+    }
+    if (count < 2 || sum <= 0) {
+      return true;
+    }
+    double mean = sum / count;
+    double variance = (sum2 - sum * mean) / (count - 1);
+    return variance / mean < 1 + 2 * Math.sqrt(2.0 / (count - 1));
   }
 
-  // Makes an image block and returns an array to the pixel values
-  float[] makeBlockImage(int blockSide) {
+  // Summed area table of the pixels assigned to a block size, with an
+  // extra leading row and column of zeros
+  int[] countRegion(int[] sideMap, int blockSide) {
+    int width = imp.getWidth();
+    int height = imp.getHeight();
+    int[] regionCount = new int[(width + 1) * (height + 1)];
+    for (int l = 0; l < height; l++) {
+      int rowCount = 0;
+      for (int k = 0; k < width; k++) {
+        if (sideMap[k + l * width] == blockSide) {
+          rowCount++;
+        }
+        regionCount[k + 1 + (l + 1) * (width + 1)] =
+                regionCount[k + 1 + l * (width + 1)] + rowCount;
+      }
+    }
+    return regionCount;
+  }
 
-    // Create a new image with stack size of 1, filled with black
-    imBlock = NewImage.createFloatImage("Block", blockSide, blockSide, 1, 1);
-    // Collect the imageprocessor
-    ipBlock = imBlock.getProcessor();
-    ipBlock.setProgressBar(null);
-    //imBlock.show();
-    // Get the pixels of the block
-    float[] pixBlock = (float[]) ipBlock.getPixels();
-    // Force first block to contain known pixel values
-    for (int i = 0; i < 16; i++) {
-      pixBlock[i] = i;
+  // Does the block at (i, j) touch any pixel of the region?
+  boolean inRegion(int[] regionCount, int i, int j, int blockSide) {
+    int width = imp.getWidth() + 1;
+    int x0 = Math.max(i, 0);
+    int y0 = Math.max(j, 0);
+    int x1 = Math.min(i + blockSide, imp.getWidth());
+    int y1 = Math.min(j + blockSide, imp.getHeight());
+    if (x0 >= x1 || y0 >= y1) {
+      return false;
     }
-    return pixBlock;
+    return regionCount[x1 + y1 * width] - regionCount[x0 + y1 * width] -
+            regionCount[x1 + y0 * width] + regionCount[x0 + y0 * width] > 0;
   }
 
-  // Makes an image to assign final values to without
-  // corrupting the input image
-  float[] makeResultImage() {
+  // Copy an image into the middle of a buffer padded by pad pixels all
+  // round.  The borders are the image mirrored about its edges, as in
+  // FFTFilter.tileMirror, so blocks over the edges see a natural image.
+  float[] padImage(float[] pixIm) {
+    int width = imp.getWidth();
+    int height = imp.getHeight();
+    int padWidth = width + 2 * pad;
+    float[] pixPadded = new float[padWidth * (height + 2 * pad)];
+    for (int y = -pad; y < height + pad; y++) {
+      int row = pad + (y + pad) * padWidth;
+      int source = mirror(y, height) * width;
+      System.arraycopy(pixIm, source, pixPadded, row, width);
+      for (int x = 1; x <= pad; x++) {
+        pixPadded[row - x] = pixIm[source + mirror(-x, width)];
+        pixPadded[row + width - 1 + x] =
+                pixIm[source + mirror(width - 1 + x, width)];
+      }
+    }
+    return pixPadded;
+  }
 
-    // Create a new image with stack size of 1, filled with black
-    imResult = NewImage.createFloatImage("Result", imp.getWidth(),
-            imp.getHeight(), 1, 1);
-    // Collect the imageprocessor
-    ipResult = imResult.getProcessor();
-    ipResult.setProgressBar(null);
-    // Get the pixels of the block
-    float[] pixResult = (float[]) ipResult.getPixels();
-    return pixResult;
+  // Add the middle of a padded buffer into an image
+  void addCropped(float[] pixPadded, float[] pixOut) {
+    int width = imp.getWidth();
+    int padWidth = width + 2 * pad;
+    for (int y = 0; y < imp.getHeight(); y++) {
+      int row = pad + (y + pad) * padWidth;
+      for (int x = 0; x < width; x++) {
+        pixOut[x + y * width] += pixPadded[row + x];
+      }
+    }
   }
 
-  void filterImage(float[] pixFilter, int blockSide) {
-    FHT fht = newFHT(ipBlock);
-    ((FHT) fht).transform();
-    customFilter(fht, pixFilter, blockSide);
-    doInverseTransform(fht, ipBlock);
+  // Position in a line of length pixels that position q mirrors onto
+  static int mirror(int q, int length) {
+    int period = 2 * length;
+    q = ((q % period) + period) % period;
+    return q < length ? q : period - 1 - q;
   }
 
-  float[] makeFilterArray(int blockSide) {
-    int tot = (int) Math.pow(2 * blockSide, 2);
-    float[] pixFilter = new float[tot];
-    for (int i = 0; i < tot; i++) {
-      pixFilter[i] = (float) 1;
+  // Add up all the frames of the stack into one high count image
+  float[] sumFrames() {
+    ImageStack stack = imp.getStack();
+    float[] pixSum = new float[imp.getWidth() * imp.getHeight()];
+    for (int f = 1; f <= stack.getSize(); f++) {
+      float[] pixFrame = (float[]) stack.getPixels(f);
+      for (int i = 0; i < pixSum.length; i++) {
+        pixSum[i] += pixFrame[i];
+      }
     }
-    return pixFilter;
+    return pixSum;
   }
 
-  float[] resetFilterArray(float[] pixFilter) {
-    for (int i = 0; i < pixFilter.length; i++) {
-      pixFilter[i] = 1;
+  // Filter every frame of the stack with the stored filter maps.  The
+  // frames are independent, so share them out to the workers.  Frames
+  // already in the checkpoint are read back instead.
+  void applyFilterMapsToFrames(final filterMap[] maps,
+          final scanCheckpoint checkpoint, String progressFile,
+          int progressStart, int progressSpan) {
+    final ImageStack stack = imp.getStack();
+    final ImageStack resultStack = imResult.getStack();
+    int nFrames = stack.getSize();
+
+    // Each map needs the reference tables of its own block size
+    final int[][] rows = new int[maps.length][];
+    final int[][] cols = new int[maps.length][];
+    for (int s = 0; s < maps.length; s++) {
+      setUpLookUpTables(maps[s].blockSide);
+      rows[s] = refRow;
+      cols[s] = refCol;
     }
-    return pixFilter;
-  }
 
-  float[] changeFilterArray(float[] pixFilter, int blockSide, float change) {
-    // Change the filter by a set amount.  The filter is always a low-pass
-    // filter, so remove high frequencies.  The high frequencies are at the
-    // edges of the array.
-    int i = 0, j = 0, k = 0;
-    int FFT_Side = 2 * blockSide;
-    int perimSide = FFT_Side - 1;
-    float value;
-
-    // The number of loops to make is the same as the blockSide as the
-    // FHT array contains blockSize*4 elements and we want to loop for each
-    // "square circle" of elements in 2D
-    for (j = 0; j < blockSide; j++) {
-      // No point looping if there's no change to commit
-      if (change > 0) {
-        // Calculate the value to assign for each pixel
-        // If the pixel value would go below zero, cap
-        // it and carry the surplus to the next level
-        if (pixFilter[refCol[k] + refRow[k] * FFT_Side] - change < 0) {
-          change = Math.abs(pixFilter[refCol[k] +
-                  refRow[k] * FFT_Side] - change);
-          value = 0;
-        } else {
-          value = pixFilter[refCol[k] + refRow[k] * FFT_Side] - change;
-          change = 0;
+    ArrayList<Future<?>> frames = new ArrayList<Future<?>>();
+    for (int f = 1; f <= nFrames; f++) {
+      final float[] pixFrame = (float[]) stack.getPixels(f);
+      final float[] pixOut = (float[]) resultStack.getPixels(f);
+      final int frame = f - 1;
+      if (checkpoint.frameDone(frame) && checkpoint.readFrame(frame, pixOut)) {
+        frames.add(null);
+        continue;
+      }
+      frames.add(job.submit(new Runnable() {
+
+        public void run() {
+          float[] pixPadded = padImage(pixFrame);
+          float[] pixSum = new float[pixPadded.length];
+          for (int s = 0; s < maps.length; s++) {
+            applyFilterMap(pixPadded, pixSum, maps[s], rows[s], cols[s]);
+          }
+          addCropped(pixSum, pixOut);
+          checkpoint.frameFinished(frame, pixOut);
         }
+      }));
+    }
+
+    // A failed frame stops the run before the stack is finalised, and the
+    // checkpoint is kept to resume from
+    waitFor(frames, progressFile, progressStart, progressSpan);
+  }
 
-        // Set pixel values for the perimiter
-        int perimeter = 4 * perimSide;
-        for (i = k; i < perimeter + k; i++) {
-          pixFilter[refCol[i] + refRow[i] * FFT_Side] = value;
+  // Filter one padded frame using the filters stored in the map, whose
+  // rings are given by the reference tables.  Every block takes exactly one
+  // transform pair, so there is no need for the statistics or the
+  // iterations.  Safe to run on several frames at once.
+  void applyFilterMap(float[] pixFrame, float[] pixOut, filterMap map,
+          int[] rowTable, int[] colTable) {
+    int blockSide = map.blockSide;
+    int width = imp.getWidth() + 2 * pad;
+    // Each frame needs its own batch as they are not shared
+    int[] columns = new int[imp.getWidth() + blockSide - 1];
+    float[] blockChange = new float[columns.length];
+    blockBatch batch = new blockBatch(blockSide, rowTable, colTable,
+            columns.length, pad);
+
+    int first = (blockSide - 1) % map.step;
+    for (int p = first; p < blockSide; p += map.step) {
+      int startJ = -1 * (blockSide - 1 - p);
+      for (int j = startJ; j < imp.getHeight(); j += blockSide) {
+        // Blocks that were empty in the summed image are NaN in the map
+        int count = bandColumns(blockSide, map.step, -1, null, j, columns);
+        for (int b = 0; b < count; b++) {
+          int n = (columns[b] + blockSide - 1) % blockSide;
+          blockChange[b] = map.get(n, p, columns[b], j);
         }
-        k = i;
-        perimSide = perimSide - 2;
+        batch.gather(pixFrame, width, j, columns, count);
+        batch.filterOnce(blockChange);
+        batch.scatter(pixOut, null, width);
+        fbnrMetrics.get().recordBatch(batch, false);
       }
     }
+  }
 
-    return pixFilter;
+  // Memory a run claims on top of its input: the result, the summed image,
+  // the scan accumulators, diagnostics and filter maps with the checkpoint's
+  // copies of them, and a batch of blocks for every worker
+  long runMemory(int[] sides, boolean dynamic, boolean diagnostics) {
+    long pixels = (long) imp.getWidth() * imp.getHeight();
+    long padded = (long) (imp.getWidth() + 2 * sides[0]) *
+            (imp.getHeight() + 2 * sides[0]);
+    long frames = dynamic ? imp.getStackSize() : 0;
+    // The result and summed image, then the padded image, the scan
+    // accumulators and weights and their checkpoint copies
+    long bytes = 4 * pixels * (frames + 2) + 4 * padded * 5;
+    if (diagnostics) {
+      bytes += 2 * 4 * padded * DIAGNOSTICS.length;
+    }
+    long worker = 0;
+    for (int s = 0; s < sides.length; s++) {
+      if (dynamic) {
+        long blocks = (long) (imp.getWidth() + 2 * sides[s]) *
+                (imp.getHeight() + 2 * sides[s]);
+        bytes += 2 * 4 * blocks;
+      }
+      worker = Math.max(worker, blockBatch.memory(sides[s],
+              imp.getWidth() + sides[s] - 1));
+    }
+    // Frames are padded and filtered into a padded sum by each worker
+    if (dynamic) {
+      worker += 2 * 4 * padded;
+    }
+    return bytes + worker * Runtime.getRuntime().availableProcessors();
   }
 
-  void doInverseTransform(FHT fht, ImageProcessor ip) {
-    fht.inverseTransform();
-    fht.resetMinAndMax();
-    ImageProcessor ip2 = fht;
-    fht.setRoi(rect.x, rect.y, rect.width, rect.height);
-    ip2 = fht.crop();
-    int bitDepth = fht.originalBitDepth >
-            0 ? fht.originalBitDepth : imp.getBitDepth();
-    switch (bitDepth) {
-      case 8:
-        ip2 = ip2.convertToByte(true);
-        break;
-      case 16:
-        ip2 = ip2.convertToShort(true);
-        break;
-      case 24:
-        fht.rgb.setBrightness((FloatProcessor) ip2);
-        ip2 = fht.rgb;
-        fht.rgb = null;
-        break;
-      case 32:
-        break;
+  // Everything the scan adds up a value per pixel into, as kept in a
+  // checkpoint
+  float[][] scanAccumulators(float[] pixResult) {
+    ArrayList<float[]> accumulators = new ArrayList<float[]>();
+    accumulators.add(pixResult);
+    if (pixWeight != null) {
+      accumulators.add(pixWeight);
+    }
+    if (pixDiagnostics != null) {
+      accumulators.addAll(Arrays.asList(pixDiagnostics));
     }
-    ip.insert(ip2, 0, 0);
+    return accumulators.toArray(new float[accumulators.size()][]);
   }
 
-  FHT newFHT(ImageProcessor ip) {
-    FHT fht;
-    int width = ip.getWidth();
-    int height = ip.getHeight();
-    int maxN = Math.max(width, height);
-    int size = 2;
-    while (size < 1.5 * maxN) {
-      size *= 2;
+  // Counts of the run, as kept in a checkpoint
+  long[] runCounts() {
+    return new long[]{runBlocks, runFailed, runHomogeneous,
+            FBNR_error ? 1 : 0, FBNR_warning ? 1 : 0};
+  }
+
+  // Checksum of the options and the input pixels of a run, which names its
+  // checkpoint.  The pixels of every frame are the input of a dynamic study.
+  long checkpointKey(String options, float[] pixScan, boolean dynamic) {
+    CRC32 crc = new CRC32();
+    crc.update((options + ";" + imp.getWidth() + "x" + imp.getHeight() +
+            "x" + imp.getStackSize()).getBytes());
+    long optionsCrc = crc.getValue();
+    crc.reset();
+    ByteBuffer buffer = ByteBuffer.allocate(4 * pixScan.length);
+    int nFrames = dynamic ? imp.getStackSize() : 1;
+    for (int f = 1; f <= nFrames; f++) {
+      float[] pixFrame = dynamic ? (float[]) imp.getStack().getPixels(f) :
+              pixScan;
+      buffer.clear();
+      buffer.asFloatBuffer().put(pixFrame);
+      crc.update(buffer.array());
     }
-    rect.x = (int) Math.round((size - width) / 2.0);
-    rect.y = (int) Math.round((size - height) / 2.0);
-    rect.width = width;
-    rect.height = height;
-    FFTFilter fftFilter = new FFTFilter();
-    fht = new FHT(fftFilter.tileMirror(ip, size, size, rect.x, rect.y));
-    //fht.originalWidth = originalWidth;
-    //fht.originalHeight = originalHeight;
-    //fht.originalBitDepth = imp.getBitDepth();
-    return fht;
+    return optionsCrc << 32 | crc.getValue();
   }
 
-  void setUpLookUpTables(int blockSide) {
-    // The fast hartley transform returns no imaginary values.
-    // The number of values in the FHT array is equal to (2*blockSide)^2.
-    // Edge values need to be edited so need to create a look up table
-    //   to refer to ponts within the image array.
+  GenericDialog doDialogue() {
+    GenericDialog FBNR_Opts = new GenericDialog("FBNR options");
 
-    if (blockSide == 4) {
-      int[] row = {0, 0, 0, 0, 0, 0, 0, 0,
-        1, 2, 3, 4, 5, 6, 7,
-        7, 7, 7, 7, 7, 7, 7,
-        6, 5, 4, 3, 2, 1,
-        1, 1, 1, 1, 1, 1,
-        2, 3, 4, 5, 6,
-        6, 6, 6, 6, 6,
-        5, 4, 3, 2,
-        2, 2, 2, 2,
-        3, 4, 5,
-        5, 5, 5,
-        4, 3,
-        3, 3,
-        4,
-        4};
-      int[] col = {0, 1, 2, 3, 4, 5, 6, 7,
-        7, 7, 7, 7, 7, 7, 7,
-        6, 5, 4, 3, 2, 1, 0,
-        0, 0, 0, 0, 0, 0,
-        1, 2, 3, 4, 5, 6,
-        6, 6, 6, 6, 6,
-        5, 4, 3, 2, 1,
-        1, 1, 1, 1,
-        2, 3, 4, 5,
-        5, 5, 5,
-        4, 3, 2,
-        2, 2,
-        3, 4,
-        4,
-        3};
-      //lookUpSwap(row, col, blockSide);
-      System.arraycopy(row, 0, refRow, 0, row.length);
-      System.arraycopy(col, 0, refCol, 0, col.length);
-    } else { //if (blockSide == 8) {
-      int[] col = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
-        15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15,
-        14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0,
-        0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14,
-        14, 14, 14, 14, 14, 14, 14, 14, 14, 14, 14, 14, 14,
-        13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1,
-        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
-        2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13,
-        13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13,
-        12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2,
-        2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
-        3, 4, 5, 6, 7, 8, 9, 10, 11, 12,
-        12, 12, 12, 12, 12, 12, 12, 12, 12,
-        11, 10, 9, 8, 7, 6, 5, 4, 3,
-        3, 3, 3, 3, 3, 3, 3, 3,
-        4, 5, 6, 7, 8, 9, 10, 11,
-        11, 11, 11, 11, 11, 11, 11,
-        10, 9, 8, 7, 6, 5, 4,
-        4, 4, 4, 4, 4, 4,
-        5, 6, 7, 8, 9, 10,
-        10, 10, 10, 10, 10,
-        9, 8, 7, 6, 5,
-        5, 5, 5, 5,
-        6, 7, 8, 9,
-        9, 9, 9,
-        8, 7, 6,
-        6, 6,
-        7, 8,
-        8,
-        7};
-
-      int[] row = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-        1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15,
-        15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15,
-        14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1,
-        1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
-        2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14,
-        14, 14, 14, 14, 14, 14, 14, 14, 14, 14, 14, 14, 14,
-        13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2,
-        2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2,
-        3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13,
-        13, 13, 13, 13, 13, 13, 13, 13, 13, 13, 13,
-        12, 11, 10, 9, 8, 7, 6, 5, 4, 3,
-        3, 3, 3, 3, 3, 3, 3, 3, 3, 3,
-        4, 5, 6, 7, 8, 9, 10, 11, 12,
-        12, 12, 12, 12, 12, 12, 12, 12, 12,
-        11, 10, 9, 8, 7, 6, 5, 4,
-        4, 4, 4, 4, 4, 4, 4, 4,
-        5, 6, 7, 8, 9, 10, 11,
-        11, 11, 11, 11, 11, 11, 11,
-        10, 9, 8, 7, 6, 5,
-        5, 5, 5, 5, 5, 5,
-        6, 7, 8, 9, 10,
-        10, 10, 10, 10, 10,
-        9, 8, 7, 6,
-        6, 6, 6, 6,
-        7, 8, 9,
-        9, 9, 9,
-        8, 7,
-        7, 7,
-        8,
-        8};
-      //lookUpSwap(row, col, blockSide);
-      System.arraycopy(row, 0, refRow, 0, row.length);
-      System.arraycopy(col, 0, refCol, 0, col.length);
-    }
-  }
-
-  float[] swapQuad(float[] array, int blockSide) {
-    // Quadrants of the filter need to be swapped, as it's easier to program
-    // filters to work on "edge" pixels representing high frequency data.
-    int FFT_Side = 2 * blockSide;
-    int tot = (int) Math.pow(FFT_Side, 2);
-    int half_tot = tot / 2;
-    float temp;
+    String[] blockOpts = new String[3];
+    blockOpts[0] = "4x4";
+    blockOpts[1] = "8x8";
+    blockOpts[2] = "Adaptive";
 
-    String quad = "Top Left";
-    int column = 1;
-    // Swap quadrants
-    for (int i = 0; i < half_tot; i++, column++) {
+    FBNR_Opts.addChoice("Block size", blockOpts, "4x4");
+    FBNR_Opts.addNumericField("Max iterations per block", 50, 0);
+    FBNR_Opts.addNumericField("Rate of change of filter", 5, 0);
+    FBNR_Opts.addNumericField("Time budget for the scan (seconds, 0 for none)",
+            0, 0);
+    FBNR_Opts.addCheckbox("Enable logging (slow)", false);
+    FBNR_Opts.addCheckbox("Diagnostic maps", false);
+    FBNR_Opts.addCheckbox("Checkpoint (resume after a crash)", true);
+    if (imp.getStackSize() > 1) {
+      FBNR_Opts.addCheckbox("Dynamic study (filters from summed frames)",
+              false);
+    }
 
-      // Operate on the quadrant variable to check where we are
-      if (column > blockSide) {
-        quad = "Top Right";
-      }
-      if (column > FFT_Side) {
-        column = 1;
-        quad = "Top Left";
+    return FBNR_Opts;
+  }
+
+  void finaliseImage(int blockSize) {
+    ImageStack stack = imResult.getStack();
+    double max = 0;
+    for (int f = 1; f <= stack.getSize(); f++) {
+      ImageProcessor ipFrame = stack.getProcessor(f);
+      // Rescale pixel values to make image an average, not a sum
+      if (pixWeight != null) {
+        float[] pixFrame = (float[]) ipFrame.getPixels();
+        for (int i = 0; i < pixFrame.length; i++) {
+          if (pixWeight[i] > 0) {
+            pixFrame[i] /= pixWeight[i];
+          }
+        }
+      } else {
+        ipFrame.multiply((float) 1 / blockSize);
       }
+      // Remove any pixel values below zero
+      ipFrame.min(0);
+      // Get max value to set contast
+      ImageStatistics stat = ipFrame.getStatistics();
+      max = Math.max(max, stat.max);
+    }
 
-      // We should now have a variable that gives a top-right or -left
-      //  answer
-      int shift = 0;
+    // Show the image
+    imResult.show();
 
-      // Choose quadrant
-      if (quad == "Top Left") {
-        shift = i + half_tot + blockSide;
-      } else if (quad == "Top Right") {
-        shift = i + half_tot - blockSide;
-      }
+    ipResult.setMinAndMax(0, max);
 
-      // Assign new values
-      temp = array[i];
-      array[i] = array[shift];
-      array[shift] = temp;
-    }
-    return array;
+    imResult.updateAndRepaintWindow();
+  }
 
+  // Average the diagnostics over the blocks covering each pixel, in the
+  // same way as the result, and show them as a stack of their own
+  void finaliseDiagnostics(int blockSize) {
+    ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
+    for (int d = 0; d < DIAGNOSTICS.length; d++) {
+      float[] pixMap = pixDiagnostics[d];
+      for (int i = 0; i < pixMap.length; i++) {
+        if (pixWeight == null) {
+          pixMap[i] /= blockSize;
+        } else if (pixWeight[i] > 0) {
+          pixMap[i] /= pixWeight[i];
+        }
+      }
+      stack.addSlice(DIAGNOSTICS[d], pixMap);
+    }
+    imDiagnostics = new ImagePlus("FBNR diagnostics of " + imp.getTitle(),
+            stack);
+    imDiagnostics.show();
   }
 
-  void customFilter(FHT fht, float[] FilterOriginal, int blockSide) {
+  // Makes an image to assign final values to without
+  // corrupting the input image
+  float[] makeResultImage(int nFrames) {
 
-    // Get pixels to operate with
-    float[] fhtPixels = (float[]) fht.getPixels();
-    // Create a new array for the filter to allow a quadrant swap without
-    //  corrupting the original data
-    float[] Filter = new float[FilterOriginal.length];
-    System.arraycopy(FilterOriginal, 0, Filter, 0, Filter.length);
-    // Swap the quandrants
-    Filter = swapQuad(Filter, blockSide);
+    // Create a new image with one slice per frame, filled with black
+    imResult = NewImage.createFloatImage("Result", imp.getWidth(),
+            imp.getHeight(), nFrames, 1);
+    // Collect the imageprocessor
+    ipResult = imResult.getProcessor();
+    ipResult.setProgressBar(null);
+    // Get the pixels of the block
+    float[] pixResult = (float[]) ipResult.getPixels();
+    return pixResult;
+  }
 
-    for (int i = 0; i < fhtPixels.length; i++) {
-      fhtPixels[i] = fhtPixels[i] * Filter[i];
+  void setUpLookUpTables(int blockSide) {
+    // The fast hartley transform returns no imaginary values.
+    // The number of values in the FHT array is equal to (2*blockSide)^2.
+    // Edge values need to be edited so need to create a look up table
+    //   to refer to ponts within the image array.
+    int FFT_Side = 2 * blockSide;
+    refRow = new int[FFT_Side * FFT_Side];
+    refCol = new int[FFT_Side * FFT_Side];
+
+    // Walk each "square circle" clockwise from its top left corner,
+    // starting at the edge of the array and working inwards
+    int k = 0;
+    for (int ring = 0; ring < blockSide; ring++) {
+      int first = ring;
+      int last = FFT_Side - 1 - ring;
+      // Along the top
+      for (int col = first; col <= last; col++, k++) {
+        refRow[k] = first;
+        refCol[k] = col;
+      }
+      // Down the right
+      for (int row = first + 1; row <= last; row++, k++) {
+        refRow[k] = row;
+        refCol[k] = last;
+      }
+      // Back along the bottom
+      for (int col = last - 1; col >= first; col--, k++) {
+        refRow[k] = last;
+        refCol[k] = col;
+      }
+      // Up the left
+      for (int row = last - 1; row > first; row--, k++) {
+        refRow[k] = row;
+        refCol[k] = first;
+      }
     }
   }
 
@@ -718,38 +1117,3 @@ public class FBNR_ implements PlugInFilter {
     }
   });
 }
-
-class variance {
-  // Object to hold variance data
-
-  public double tot, tot0, res, signal, noise, max, scale;
-  public boolean scaled;
-
-  public variance() {
-    // Initialise parameters to zero
-
-    // Total variance of a block
-    tot0 = 0;
-
-    // Block variance post filtering
-    tot = 0;
-
-    // The difference between tot and tot2
-    res = 0;
-
-    // The noise variance, just equal to the mean pixel value
-    noise = 0;
-
-    // var.tot = var.signal - var.noise
-    signal = 0;
-
-    // The max pixel value of the unadulterated block
-    max = 0;
-
-    // Variable to hold whether the image has been scaled or not
-    scaled = false;
-
-    // How much the block has been scaled by
-    scale = (double) 1;
-  }
-}
@@ -0,0 +1,455 @@
+package FBNR;
+
+///////////////////////////////////////////////////////////////////////////////
+// Batched processing of a band of blocks
+///////////////////////////////////////////////////////////////////////////////
+//
+// Every block position along a band of rows is gathered at once and the
+// blocks are transformed, filtered and measured together.  The data of the
+// blocks are kept side by side (structure of arrays), element by element,
+// so the inner loops run over the blocks and make good use of the cache.
+// Blocks that have converged drop out of the batch, the last block still
+// iterating takes their place, and the results are added into the image
+// in one pass at the end.
+//
+// Images are padded all round by mirroring (see FBNR_.padImage), so blocks
+// over the edge of the image are copied in and out a row at a time with no
+// checks.  Bands and columns are in image coordinates.
+//
+///////////////////////////////////////////////////////////////////////////////
+
+import ij.IJ;
+
+class blockBatch {
+
+  // What happened to each block
+  static final byte EMPTY = 0, HOMOGENEOUS = 1, CONVERGED = 2, FAILED = 3;
+
+  private int blockSide, blockSize, capacity, pad;
+  private slidingHartley hartley;
+  // Ring of the filter for every element of the spectrum
+  private int[] spectrumRing;
+
+  // The band being processed and the blocks along it
+  private int band, count;
+  private int[] columns;
+  // Pixels of each block, block by block: [b * blockSize + pixel].  Start
+  // as the image values and end as the filtered values.
+  private float[] result;
+  // Outcome of each block
+  private byte[] state;
+  private float[] totalChange;
+  private int[] iterations;
+  private double[] blockScales;
+
+  // Blocks still iterating, side by side: [element * capacity + lane]
+  private int active;
+  private int[] laneBlock, laneColumn;
+  private double[] spectrum;
+  private float[] ring, ringPrev, pixels;
+  private double[] scale, tot0, noise, res, sum, sum2;
+  private float[] change, laneChange;
+
+  // Time spent in each stage since fbnrMetrics last took them
+  long extractNanos, transformNanos, statisticsNanos, pushNanos;
+
+  // Batches of up to capacity blocks, from images padded by pad pixels
+  public blockBatch(int blockSide, int[] refRow, int[] refCol, int capacity,
+          int pad) {
+    this.blockSide = blockSide;
+    this.capacity = capacity;
+    this.pad = pad;
+    blockSize = blockSide * blockSide;
+    int fftSize = 4 * blockSize;
+
+    hartley = new slidingHartley(blockSide, pad);
+    spectrumRing = hartley.spectrumRings(refRow, refCol);
+
+    columns = new int[capacity];
+    result = new float[capacity * blockSize];
+    state = new byte[capacity];
+    totalChange = new float[capacity];
+    iterations = new int[capacity];
+    blockScales = new double[capacity];
+
+    laneBlock = new int[capacity];
+    laneColumn = new int[capacity];
+    spectrum = new double[fftSize * capacity];
+    ring = new float[blockSide * capacity];
+    ringPrev = new float[blockSide * capacity];
+    pixels = new float[blockSize * capacity];
+    scale = new double[capacity];
+    tot0 = new double[capacity];
+    noise = new double[capacity];
+    res = new double[capacity];
+    sum = new double[capacity];
+    sum2 = new double[capacity];
+    change = new float[capacity];
+    laneChange = new float[capacity];
+  }
+
+  // Rough size in bytes of a batch of capacity blocks and its transform
+  // workspace
+  static long memory(int blockSide, int capacity) {
+    long blockSize = blockSide * blockSide;
+    long perBlock = 4 * blockSize + 8 * 4 * blockSize + 4 * 2 * blockSide +
+            4 * blockSize + 8 * 7 + 4 * 2 + 4 * 4 + 1 +
+            8 * 2 * 2 * blockSize;
+    return capacity * perBlock + 8 * 2 * 2 * blockSide * (capacity + blockSide);
+  }
+
+  public int blockSide() {
+    return blockSide;
+  }
+
+  public int count() {
+    return count;
+  }
+
+  public int column(int b) {
+    return columns[b];
+  }
+
+  public byte state(int b) {
+    return state[b];
+  }
+
+  public float totalChange(int b) {
+    return totalChange[b];
+  }
+
+  public int iterations(int b) {
+    return iterations[b];
+  }
+
+  public double scale(int b) {
+    return blockScales[b];
+  }
+
+  // Copy the blocks starting at the given columns of the band of rows j
+  // out of the padded image, width wide
+  public void gather(float[] pixPadded, int width, int j, int[] blockColumns,
+          int blocks) {
+    long start = System.nanoTime();
+    band = j;
+    count = blocks;
+    System.arraycopy(blockColumns, 0, columns, 0, blocks);
+    for (int b = 0; b < count; b++) {
+      int origin = columns[b] + pad + (j + pad) * width;
+      for (int l = 0; l < blockSide; l++) {      // y values
+        System.arraycopy(pixPadded, origin + l * width, result,
+                b * blockSize + l * blockSide, blockSide);
+      }
+      state[b] = EMPTY;
+      totalChange[b] = 0;
+      iterations[b] = 0;
+      blockScales[b] = 1;
+    }
+    long copied = System.nanoTime();
+    hartley.setBand(pixPadded, width, j);
+    extractNanos += copied - start;
+    transformNanos += System.nanoTime() - copied;
+  }
+
+  // Iterate the filter of every block until the variance it removes
+  // matches the noise, as in Guy's paper
+  public void converge(int maxIterations, float changeRate, boolean logging) {
+    long start = System.nanoTime();
+    active = 0;
+    for (int b = 0; b < count; b++) {
+      startBlock(b, logging);
+    }
+    long started = System.nanoTime();
+    statisticsNanos += started - start;
+    hartley.setBlocks(laneColumn, active, spectrum, capacity);
+    transformNanos += System.nanoTime() - started;
+
+    int m = 0;       // to track the number of iterations
+    while (active > 0) {
+      // Save the previous filter and edit the filter
+      System.arraycopy(ring, 0, ringPrev, 0, ring.length);
+      for (int lane = 0; lane < active; lane++) {
+        changeRings(lane, change[lane]);
+        laneChange[lane] += change[lane];
+      }
+      // Filter the blocks, scaled as when they were started
+      start = System.nanoTime();
+      hartley.filterBlocks(spectrum, ring, spectrumRing, scale, active,
+              capacity, pixels);
+      long filtered = System.nanoTime();
+      transformNanos += filtered - start;
+      // Recalculate variance
+      residuals();
+      statisticsNanos += System.nanoTime() - filtered;
+      m++;
+
+      // Work backwards so that a lane moved into a finished one has
+      // already been dealt with
+      for (int lane = active - 1; lane >= 0; lane--) {
+        boolean continu = true;
+        // Total change of the filter that made the pixels of this iteration
+        float applied = laneChange[lane];
+        if (logging) {
+          IJ.log("Iteration: " + Integer.toString(m) +
+                  "  Change = " + Float.toString(change[lane]) +
+                  " i=" + Integer.toString(laneColumn[lane]));
+          IJ.log("Block variance = " + Double.toString(tot0[lane] - res[lane]));
+          IJ.log("Block noise = " + Double.toString(noise[lane]));
+          IJ.log("Block residual = " + Double.toString(res[lane]));
+        }
+        // When the residual is larger than the noise we have reached a
+        // point where we need to condsider what's to be done.
+        if (res[lane] > noise[lane]) {
+          // Take back the last change from the total
+          laneChange[lane] -= change[lane];
+          // change the change!
+          change[lane] = change[lane] / changeRate;
+          // Reset the filter to the previous value (ie where noise > res)
+          for (int r = 0; r < blockSide; r++) {
+            ring[r * capacity + lane] = ringPrev[r * capacity + lane];
+          }
+        }
+        // Should the loop terminate?
+        byte outcome = CONVERGED;
+        if (Math.abs(res[lane] - noise[lane]) < 0.1) {
+          continu = false;
+        }
+        if (m >= maxIterations) {
+          continu = false;
+          outcome = FAILED;
+          if (logging) {
+            IJ.log("No convergance at i=" + laneColumn[lane] + ", j=" + band);
+          }
+        }
+        if (!continu) {
+          finishBlock(lane, outcome, m, applied);
+        }
+      }
+    }
+  }
+
+  // Filter every block with a filter already found for it, with no
+  // iteration.  NaN leaves the block out and zero leaves it unfiltered.
+  public void filterOnce(float[] blockChange) {
+    active = 0;
+    for (int b = 0; b < count; b++) {
+      totalChange[b] = blockChange[b];
+      if (Float.isNaN(blockChange[b])) {
+        state[b] = EMPTY;
+      } else if (blockChange[b] > 0) {
+        addLane(b, 1);
+        changeRings(active - 1, blockChange[b]);
+      } else {
+        state[b] = HOMOGENEOUS;
+      }
+    }
+    long start = System.nanoTime();
+    hartley.setBlocks(laneColumn, active, spectrum, capacity);
+    hartley.filterBlocks(spectrum, ring, spectrumRing, scale, active,
+            capacity, pixels);
+    transformNanos += System.nanoTime() - start;
+    for (int lane = active - 1; lane >= 0; lane--) {
+      finishBlock(lane, CONVERGED, 1, totalChange[laneBlock[lane]]);
+    }
+  }
+
+  // Add the blocks back into the padded image in one pass.  Empty blocks
+  // are left out; the contributions are counted in the weights if they are
+  // kept.
+  public void scatter(float[] pixResult, float[] pixWeight, int width) {
+    long start = System.nanoTime();
+    for (int l = 0; l < blockSide; l++) {
+      int row = (band + pad + l) * width + pad;
+      for (int b = 0; b < count; b++) {
+        if (state[b] == EMPTY) {
+          continue;
+        }
+        int index = columns[b] + row;
+        int pixel = b * blockSize + l * blockSide;
+        for (int k = 0; k < blockSide; k++) {
+          pixResult[index + k] += result[pixel + k];
+        }
+        if (pixWeight != null) {
+          for (int k = 0; k < blockSide; k++) {
+            pixWeight[index + k] += 1;
+          }
+        }
+      }
+    }
+    pushNanos += System.nanoTime() - start;
+  }
+
+  // Add the outcome of every block to each of its pixels, as scatter does
+  // with the filtered values: [0] iterations, [1] total filter change,
+  // [2] scale, [3] 1 if it failed to converge and [4] 1 if homogeneous
+  public void scatterDiagnostics(float[][] pixDiagnostics, int width) {
+    long start = System.nanoTime();
+    for (int b = 0; b < count; b++) {
+      if (state[b] == EMPTY) {
+        continue;
+      }
+      float failed = state[b] == FAILED ? 1 : 0;
+      float homogeneous = state[b] == HOMOGENEOUS ? 1 : 0;
+      for (int l = 0; l < blockSide; l++) {
+        int index = columns[b] + pad + (band + pad + l) * width;
+        for (int k = index; k < index + blockSide; k++) {
+          pixDiagnostics[0][k] += iterations[b];
+          pixDiagnostics[1][k] += totalChange[b];
+          pixDiagnostics[2][k] += blockScales[b];
+          pixDiagnostics[3][k] += failed;
+          pixDiagnostics[4][k] += homogeneous;
+        }
+      }
+    }
+    pushNanos += System.nanoTime() - start;
+  }
+
+  // Work out the scale and the variance of a block before any filtering.
+  // Empty and homogeneous blocks are finished straight away, the rest join
+  // the batch.
+  private void startBlock(int b, boolean logging) {
+    double max = -Double.MAX_VALUE;
+    double sum = 0, sum2 = 0;
+    for (int pixel = 0; pixel < blockSize; pixel++) {
+      double value = result[b * blockSize + pixel];
+      max = Math.max(max, value);
+      sum += value;
+      sum2 += value * value;
+    }
+    if (max <= 0) {
+      state[b] = EMPTY;
+      return;
+    }
+
+    // Ramp up the grey levels of low count areas or accentuate differences
+    // of homogeneous areas where the noise is greater than the variance.
+    // Scale by 100 for low count areas to reduce amount of negative pixels
+    double blockScale = max < 25 ? 100 : 1;
+    // Scale up to 1000 times in an attempt to accentuate differences
+    while (variance(sum * blockScale, sum2 * blockScale * blockScale) <
+            sum * blockScale / blockSize & blockScale < 1000) {
+      blockScale = blockScale * 10;
+    }
+
+    blockScales[b] = blockScale;
+
+    // Estimate the variance of the block for the first time.  Noise in the
+    // sub block is estimated as the mean value.
+    double blockTot0 = variance(sum * blockScale,
+            sum2 * blockScale * blockScale);
+    double blockNoise = sum * blockScale / blockSize;
+    if (logging) {
+      IJ.log("---------------------------------------------");
+      IJ.log("Block at i=" + columns[b] + ", j=" + band);
+      IJ.log("Block variance = " + Double.toString(blockTot0));
+      IJ.log("Block noise = " + Double.toString(blockNoise));
+      IJ.log("Block max = " + Double.toString(max));
+      IJ.log("---------------------------------------------");
+    }
+
+    if (blockTot0 < blockNoise) {
+      // This will never converge! Keep the original values
+      state[b] = HOMOGENEOUS;
+      return;
+    }
+    int lane = addLane(b, blockScale);
+    tot0[lane] = blockTot0;
+    noise[lane] = blockNoise;
+    change[lane] = (float) 1 / blockSide;
+  }
+
+  // Put a block into the next free lane with an untouched filter
+  private int addLane(int b, double blockScale) {
+    int lane = active++;
+    laneBlock[lane] = b;
+    laneColumn[lane] = columns[b];
+    scale[lane] = blockScale;
+    laneChange[lane] = 0;
+    for (int r = 0; r < blockSide; r++) {
+      ring[r * capacity + lane] = 1;
+    }
+    return lane;
+  }
+
+  // Keep the filtered pixels of a lane, with the total change of the filter
+  // that made them, then move the last lane into its place so the lanes
+  // still iterating stay together
+  private void finishBlock(int lane, byte outcome, int m, float applied) {
+    int b = laneBlock[lane];
+    state[b] = outcome;
+    totalChange[b] = applied;
+    iterations[b] = m;
+    for (int pixel = 0; pixel < blockSize; pixel++) {
+      result[b * blockSize + pixel] =
+              (float) (pixels[pixel * capacity + lane] / scale[lane]);
+    }
+
+    int last = --active;
+    if (lane != last) {
+      laneBlock[lane] = laneBlock[last];
+      laneColumn[lane] = laneColumn[last];
+      for (int c = 0; c < 4 * blockSize; c++) {
+        spectrum[c * capacity + lane] = spectrum[c * capacity + last];
+      }
+      for (int r = 0; r < blockSide; r++) {
+        ring[r * capacity + lane] = ring[r * capacity + last];
+      }
+      scale[lane] = scale[last];
+      tot0[lane] = tot0[last];
+      noise[lane] = noise[last];
+      change[lane] = change[last];
+      laneChange[lane] = laneChange[last];
+    }
+  }
+
+  // Residual of every lane: the difference between the initial block
+  // variance and the current one
+  private void residuals() {
+    for (int lane = 0; lane < active; lane++) {
+      sum[lane] = 0;
+      sum2[lane] = 0;
+    }
+    for (int pixel = 0; pixel < blockSize; pixel++) {
+      int element = pixel * capacity;
+      for (int lane = 0; lane < active; lane++) {
+        double value = pixels[element + lane];
+        sum[lane] += value;
+        sum2[lane] += value * value;
+      }
+    }
+    for (int lane = 0; lane < active; lane++) {
+      res[lane] = tot0[lane] - variance(sum[lane], sum2[lane]);
+    }
+  }
+
+  // Change the filter of a lane by a set amount.  The filter is always a
+  // low-pass filter, so remove high frequencies.  The high frequencies are
+  // in the outer rings, so start there.
+  private void changeRings(int lane, float amount) {
+    for (int r = 0; r < blockSide; r++) {
+      // No point looping if there's no change to commit
+      if (amount > 0) {
+        // If the value would go below zero, cap it and carry the surplus to
+        // the next ring
+        float value = ring[r * capacity + lane];
+        if (value - amount < 0) {
+          amount = Math.abs(value - amount);
+          ring[r * capacity + lane] = 0;
+        } else {
+          ring[r * capacity + lane] = value - amount;
+          amount = 0;
+        }
+      }
+    }
+  }
+
+  // Sample variance, as the square of ImageJ's standard deviation.  Taking
+  // the square root and squaring it again matters: flat blocks often have a
+  // variance equal to their mean, and which way the rounding goes decides
+  // whether they are filtered.
+  private double variance(double sum, double sum2) {
+    double var = (blockSize * sum2 - sum * sum) / blockSize;
+    double stdDev = var > 0 ? Math.sqrt(var / (blockSize - 1.0)) : 0;
+    return Math.pow(stdDev, 2);
+  }
+}
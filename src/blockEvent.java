@@ -0,0 +1,37 @@
+package FBNR;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Flight recorder event for the outcome of a block.  Blocks are processed
+// in batches, so there is no time per block; only one block in every
+// fbnrMetrics.BLOCK_SAMPLE is recorded.
+@Name("FBNR.Block")
+@Label("FBNR Block")
+@Category("FBNR")
+@Description("Outcome of a sampled block")
+@StackTrace(false)
+class blockEvent extends jdk.jfr.Event {
+
+  @Label("x")
+  int x;
+
+  @Label("y")
+  int y;
+
+  @Label("Block Side")
+  int blockSide;
+
+  @Label("Iterations")
+  int iterations;
+
+  @Label("Outcome")
+  String outcome;
+
+  @Label("Filter Change")
+  @Description("Total amount taken off the filter")
+  float totalChange;
+}
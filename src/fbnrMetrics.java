@@ -0,0 +1,250 @@
+package FBNR;
+
+///////////////////////////////////////////////////////////////////////////////
+// Running totals of every FBNR run in this JVM
+///////////////////////////////////////////////////////////////////////////////
+//
+// Registered with the platform MBean server as FBNR:type=Metrics so that
+// batch jobs can be watched from JConsole or any JMX client.  Blocks are
+// counted a batch at a time, so keeping the totals costs next to nothing.
+//
+///////////////////////////////////////////////////////////////////////////////
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class fbnrMetrics implements fbnrMetricsMBean {
+
+  // Whether this runtime has the flight recorder.  The events are only made
+  // if it does, so runs still work on older Java.
+  static final boolean EVENTS = hasFlightRecorder();
+  // Only one block in this many is recorded as a flight recorder event
+  static final int BLOCK_SAMPLE = 256;
+  // Largest number of iterations in each bucket of the histogram
+  private static final int[] BUCKET_LIMITS = {1, 2, 4, 8, 16, 32, 64,
+    Integer.MAX_VALUE};
+  private static final String NAME = "FBNR:type=Metrics";
+  private static fbnrMetrics metrics;
+
+  private AtomicInteger activeRuns = new AtomicInteger();
+  private AtomicInteger activeThreads = new AtomicInteger();
+  private AtomicLong runsCompleted = new AtomicLong();
+  // Time during which at least one run was active
+  private long busyStart, busyNanos;
+
+  private AtomicLong blocks = new AtomicLong();
+  private AtomicLong iteratedBlocks = new AtomicLong();
+  private AtomicLong failedBlocks = new AtomicLong();
+  private AtomicLong homogeneousBlocks = new AtomicLong();
+  private AtomicLongArray histogram =
+          new AtomicLongArray(BUCKET_LIMITS.length);
+
+  private AtomicLong extractNanos = new AtomicLong();
+  private AtomicLong transformNanos = new AtomicLong();
+  private AtomicLong statisticsNanos = new AtomicLong();
+  private AtomicLong pushNanos = new AtomicLong();
+
+  private static boolean hasFlightRecorder() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return true;
+    } catch (Throwable e) {
+      return false;
+    }
+  }
+
+  // The metrics shared by every run, registered on first use
+  static synchronized fbnrMetrics get() {
+    if (metrics == null) {
+      metrics = new fbnrMetrics();
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(NAME);
+        // ImageJ may have loaded the plugin again with a new class loader
+        if (server.isRegistered(name)) {
+          server.unregisterMBean(name);
+        }
+        server.registerMBean(metrics, name);
+      } catch (Exception e) {
+        // Carry on counting, the totals just can't be seen from outside
+      }
+    }
+    return metrics;
+  }
+
+  synchronized void runStarted() {
+    if (activeRuns.getAndIncrement() == 0) {
+      busyStart = System.nanoTime();
+    }
+  }
+
+  synchronized void runFinished() {
+    runsCompleted.incrementAndGet();
+    if (activeRuns.decrementAndGet() == 0) {
+      busyNanos += System.nanoTime() - busyStart;
+    }
+  }
+
+  void threadStarted() {
+    activeThreads.incrementAndGet();
+  }
+
+  void threadFinished() {
+    activeThreads.decrementAndGet();
+  }
+
+  // Count the outcome of a batch of blocks and take its stage times.  The
+  // iterations are only counted if the batch went through the convergence
+  // loop.
+  void recordBatch(blockBatch batch, boolean iterated) {
+    long done = 0, iterations = 0, failed = 0, homogeneous = 0;
+    for (int b = 0; b < batch.count(); b++) {
+      byte state = batch.state(b);
+      if (state == blockBatch.EMPTY) {
+        continue;
+      }
+      done++;
+      if (state == blockBatch.HOMOGENEOUS) {
+        homogeneous++;
+      } else if (iterated) {
+        iterations++;
+        if (state == blockBatch.FAILED) {
+          failed++;
+        }
+        histogram.incrementAndGet(bucket(batch.iterations(b)));
+      }
+    }
+    blocks.addAndGet(done);
+    iteratedBlocks.addAndGet(iterations);
+    failedBlocks.addAndGet(failed);
+    homogeneousBlocks.addAndGet(homogeneous);
+
+    extractNanos.addAndGet(batch.extractNanos);
+    transformNanos.addAndGet(batch.transformNanos);
+    statisticsNanos.addAndGet(batch.statisticsNanos);
+    pushNanos.addAndGet(batch.pushNanos);
+    batch.extractNanos = 0;
+    batch.transformNanos = 0;
+    batch.statisticsNanos = 0;
+    batch.pushNanos = 0;
+  }
+
+  private int bucket(int iterations) {
+    int i = 0;
+    while (iterations > BUCKET_LIMITS[i]) {
+      i++;
+    }
+    return i;
+  }
+
+  public long getRunsCompleted() {
+    return runsCompleted.get();
+  }
+
+  public int getActiveRuns() {
+    return activeRuns.get();
+  }
+
+  public int getActiveThreads() {
+    return activeThreads.get();
+  }
+
+  public long getBlocksProcessed() {
+    return blocks.get();
+  }
+
+  public synchronized double getBlocksPerSecond() {
+    long nanos = busyNanos;
+    if (activeRuns.get() > 0) {
+      nanos += System.nanoTime() - busyStart;
+    }
+    return nanos > 0 ? blocks.get() * 1e9 / nanos : 0;
+  }
+
+  public long[] getIterationHistogram() {
+    long[] counts = new long[BUCKET_LIMITS.length];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = histogram.get(i);
+    }
+    return counts;
+  }
+
+  public String[] getIterationBuckets() {
+    String[] buckets = new String[BUCKET_LIMITS.length];
+    int low = 1;
+    for (int i = 0; i < buckets.length; i++) {
+      if (BUCKET_LIMITS[i] == Integer.MAX_VALUE) {
+        buckets[i] = low + "+";
+      } else if (BUCKET_LIMITS[i] == low) {
+        buckets[i] = Integer.toString(low);
+      } else {
+        buckets[i] = low + "-" + BUCKET_LIMITS[i];
+      }
+      low = BUCKET_LIMITS[i] + 1;
+    }
+    return buckets;
+  }
+
+  public double getConvergenceFailureRate() {
+    long iterated = iteratedBlocks.get();
+    return iterated > 0 ? (double) failedBlocks.get() / iterated : 0;
+  }
+
+  public double getHomogeneousRate() {
+    long done = blocks.get();
+    return done > 0 ? (double) homogeneousBlocks.get() / done : 0;
+  }
+
+  public double getExtractMillis() {
+    return extractNanos.get() / 1e6;
+  }
+
+  public double getTransformMillis() {
+    return transformNanos.get() / 1e6;
+  }
+
+  public double getStatisticsMillis() {
+    return statisticsNanos.get() / 1e6;
+  }
+
+  public double getPushMillis() {
+    return pushNanos.get() / 1e6;
+  }
+
+  public int getWorkerThreads() {
+    return fbnrScheduler.get().getWorkers();
+  }
+
+  public int getQueuedTasks() {
+    return fbnrScheduler.get().getQueuedTasks();
+  }
+
+  public double getMemoryInUseMB() {
+    return fbnrScheduler.get().getMemoryUsed() / 1048576.0;
+  }
+
+  public double getMemoryBudgetMB() {
+    return fbnrScheduler.get().getMemoryBudget() / 1048576.0;
+  }
+
+  public synchronized void reset() {
+    runsCompleted.set(0);
+    busyNanos = 0;
+    busyStart = System.nanoTime();
+    blocks.set(0);
+    iteratedBlocks.set(0);
+    failedBlocks.set(0);
+    homogeneousBlocks.set(0);
+    for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+      histogram.set(i, 0);
+    }
+    extractNanos.set(0);
+    transformNanos.set(0);
+    statisticsNanos.set(0);
+    pushNanos.set(0);
+  }
+}
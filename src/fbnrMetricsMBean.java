@@ -0,0 +1,48 @@
+package FBNR;
+
+// Management interface of fbnrMetrics, seen in JConsole as FBNR:type=Metrics
+public interface fbnrMetricsMBean {
+
+  long getRunsCompleted();
+
+  int getActiveRuns();
+
+  int getActiveThreads();
+
+  long getBlocksProcessed();
+
+  // Blocks per second over the time at least one run was active
+  double getBlocksPerSecond();
+
+  // Blocks by iterations used, see getIterationBuckets for the ranges
+  long[] getIterationHistogram();
+
+  String[] getIterationBuckets();
+
+  // Fraction of iterated blocks reaching the maximum number of iterations
+  double getConvergenceFailureRate();
+
+  // Fraction of non-empty blocks left unfiltered due to homogeneity
+  double getHomogeneousRate();
+
+  // Total time in each stage of the block processing
+  double getExtractMillis();
+
+  double getTransformMillis();
+
+  double getStatisticsMillis();
+
+  double getPushMillis();
+
+  // Scheduler shared by the runs: worker threads, tasks waiting for them,
+  // and the memory claimed by the runs against the budget
+  int getWorkerThreads();
+
+  int getQueuedTasks();
+
+  double getMemoryInUseMB();
+
+  double getMemoryBudgetMB();
+
+  void reset();
+}
@@ -0,0 +1,195 @@
+package FBNR;
+
+///////////////////////////////////////////////////////////////////////////////
+// One pool of worker threads shared by every FBNR run in this JVM
+///////////////////////////////////////////////////////////////////////////////
+//
+// Several studies are often filtered at once, and a pool per run would
+// start a thread per processor for each of them.  Instead every run joins
+// the scheduler as a job and queues its work there.  There are never more
+// workers than processors, and they take a task from each job in turn, so
+// a run with a few bands is not held up behind a stack of hundreds of
+// frames.
+//
+// Runs also have to be admitted by the memory governor before they
+// allocate their images.  A run waits while the memory claimed by the runs
+// already going, plus its own, would go over the budget.  Runs are let in
+// in the order they asked, so a big run is not overtaken for ever by small
+// ones that fit.  A run on its own is always let in, however big, so
+// nothing waits for ever.
+//
+///////////////////////////////////////////////////////////////////////////////
+
+import ij.IJ;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+class fbnrScheduler {
+
+  // Share of the maximum heap the runs may claim between them
+  static final double MEMORY_FRACTION = 0.6;
+  private static fbnrScheduler scheduler;
+
+  private int threads, workers;
+  private long memoryBudget, memoryUsed;
+  // Runs waiting for memory, in the order they asked
+  private ArrayDeque<Object> waiting = new ArrayDeque<Object>();
+  // Jobs with their queued tasks, and the one to take a task from next
+  private ArrayList<job> jobs = new ArrayList<job>();
+  private int nextJob;
+
+  // The scheduler shared by every run, started on first use
+  static synchronized fbnrScheduler get() {
+    if (scheduler == null) {
+      scheduler = new fbnrScheduler();
+    }
+    return scheduler;
+  }
+
+  private fbnrScheduler() {
+    threads = Runtime.getRuntime().availableProcessors();
+    memoryBudget = (long) (Runtime.getRuntime().maxMemory() * MEMORY_FRACTION);
+  }
+
+  // Wait until the runs that asked first are in and the memory of this run
+  // fits in the budget, then claim it.  Returns false if the wait was
+  // interrupted.
+  synchronized boolean admit(long bytes) {
+    Object ticket = new Object();
+    waiting.add(ticket);
+    boolean waited = false;
+    while (waiting.peek() != ticket ||
+            (memoryUsed > 0 && memoryUsed + bytes > memoryBudget)) {
+      if (!waited) {
+        IJ.showStatus("FBNR: waiting for memory used by other runs");
+        waited = true;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // Let the runs behind this one move up
+        waiting.remove(ticket);
+        notifyAll();
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    waiting.poll();
+    memoryUsed += bytes;
+    // The next run in line may fit as well
+    notifyAll();
+    return true;
+  }
+
+  synchronized void release(long bytes) {
+    memoryUsed -= bytes;
+    notifyAll();
+  }
+
+  // Start a job for a run, to queue its tasks on
+  synchronized job join() {
+    job j = new job();
+    jobs.add(j);
+    return j;
+  }
+
+  synchronized long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  synchronized long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  synchronized int getQueuedTasks() {
+    int queued = 0;
+    for (job j : jobs) {
+      queued += j.tasks.size();
+    }
+    return queued;
+  }
+
+  synchronized int getWorkers() {
+    return workers;
+  }
+
+  // Take the next task, from the job after the one served last
+  private synchronized FutureTask<?> next() throws InterruptedException {
+    while (true) {
+      for (int k = 0; k < jobs.size(); k++) {
+        job j = jobs.get((nextJob + k) % jobs.size());
+        if (!j.tasks.isEmpty()) {
+          nextJob = (nextJob + k + 1) % jobs.size();
+          return j.tasks.poll();
+        }
+      }
+      wait();
+    }
+  }
+
+  // Workers are started as work comes in, up to one per processor
+  private void startWorker() {
+    workers++;
+    Thread worker = new Thread(new Runnable() {
+
+      public void run() {
+        try {
+          while (true) {
+            FutureTask<?> task = next();
+            fbnrMetrics.get().threadStarted();
+            try {
+              task.run();
+            } finally {
+              fbnrMetrics.get().threadFinished();
+            }
+          }
+        } catch (InterruptedException e) {
+          synchronized (fbnrScheduler.this) {
+            workers--;
+          }
+        }
+      }
+    }, "FBNR worker " + workers);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  // The work of one run
+  class job {
+
+    private ArrayDeque<FutureTask<?>> tasks = new ArrayDeque<FutureTask<?>>();
+
+    public Future<?> submit(Runnable task) {
+      FutureTask<Object> future = new FutureTask<Object>(task, null);
+      synchronized (fbnrScheduler.this) {
+        tasks.add(future);
+        if (workers < threads) {
+          startWorker();
+        }
+        fbnrScheduler.this.notifyAll();
+      }
+      return future;
+    }
+
+    // Drop any tasks not started.  The workers have taken the others, so
+    // they are running or done.
+    public void cancelQueued() {
+      synchronized (fbnrScheduler.this) {
+        for (FutureTask<?> task : tasks) {
+          task.cancel(false);
+        }
+        tasks.clear();
+      }
+    }
+
+    // Drop any tasks not started and leave the scheduler
+    public void leave() {
+      synchronized (fbnrScheduler.this) {
+        cancelQueued();
+        jobs.remove(this);
+      }
+    }
+  }
+}
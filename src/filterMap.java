@@ -0,0 +1,41 @@
+package FBNR;
+
+import java.util.Arrays;
+
+class filterMap {
+  // Object to hold the converged filter of every block position, so that
+  // the filters found on one image can be applied to another
+
+  public int blockSide, step, blocksX, blocksY;
+  // Total filter change per shift (n, p) and block, NaN if not filtered
+  public float[][] change;
+
+  public filterMap(int blockSide, int step, int width, int height) {
+    this.blockSide = blockSide;
+    this.step = step;
+    // Number of blocks needed to cover the image on each scan, starting up
+    // to blockSide - 1 pixels before it
+    blocksX = (width + 2 * blockSide - 2) / blockSide;
+    blocksY = (height + 2 * blockSide - 2) / blockSide;
+
+    change = new float[blockSide * blockSide][blocksX * blocksY];
+    for (int s = 0; s < change.length; s++) {
+      Arrays.fill(change[s], Float.NaN);
+    }
+  }
+
+  // Block (i, j) of scan (n, p) starts at i = n - blockSide + 1 + x * blockSide
+  int index(int n, int p, int i, int j) {
+    int x = (i + blockSide - 1 - n) / blockSide;
+    int y = (j + blockSide - 1 - p) / blockSide;
+    return x + y * blocksX;
+  }
+
+  public void set(int n, int p, int i, int j, float totalChange) {
+    change[p + n * blockSide][index(n, p, i, j)] = totalChange;
+  }
+
+  public float get(int n, int p, int i, int j) {
+    return change[p + n * blockSide][index(n, p, i, j)];
+  }
+}
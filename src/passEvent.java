@@ -0,0 +1,34 @@
+package FBNR;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight recorder event covering one shift pass: every band of blocks for
+// one offset down the image (p), with one or all of the offsets across it (n)
+@Name("FBNR.ShiftPass")
+@Label("FBNR Shift Pass")
+@Category("FBNR")
+@Description("All the blocks of one vertical offset of the scan")
+class passEvent extends jdk.jfr.Event {
+
+  @Label("Block Side")
+  int blockSide;
+
+  @Label("Horizontal Offset")
+  @Description("Offset across the image, or -1 for all of them")
+  int columnOffset;
+
+  @Label("Vertical Offset")
+  int offset;
+
+  @Label("Blocks")
+  long blocks;
+
+  @Label("Failed Blocks")
+  long failedBlocks;
+
+  @Label("Homogeneous Blocks")
+  long homogeneousBlocks;
+}
@@ -0,0 +1,50 @@
+package FBNR;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Flight recorder event covering one FBNR run, from the dialogue closing
+// to the result being shown
+@Name("FBNR.Run")
+@Label("FBNR Run")
+@Category("FBNR")
+@Description("One run of the FBNR filter over an image or stack")
+class runEvent extends jdk.jfr.Event {
+
+  @Label("Image")
+  String image;
+
+  @Label("Width")
+  int width;
+
+  @Label("Height")
+  int height;
+
+  @Label("Frames")
+  int frames;
+
+  @Label("Block Size")
+  String blockSize;
+
+  @Label("Blocks")
+  @Description("Blocks with counts in them, homogeneous ones included")
+  long blocks;
+
+  @Label("Failed Blocks")
+  @Description("Blocks that reached the maximum number of iterations")
+  long failedBlocks;
+
+  @Label("Homogeneous Blocks")
+  @Description("Blocks left unfiltered as their variance is below the noise")
+  long homogeneousBlocks;
+
+  @Label("Offsets")
+  @Description("Block offsets to scan over all block sizes")
+  int offsets;
+
+  @Label("Completed Offsets")
+  @Description("Block offsets scanned before any time budget ran out")
+  int completedOffsets;
+}
@@ -0,0 +1,484 @@
+package FBNR;
+
+///////////////////////////////////////////////////////////////////////////////
+// Checkpoints of a run, so a run that dies can carry on where it stopped
+///////////////////////////////////////////////////////////////////////////////
+//
+// A run is the sum of independent passes over the image, so all that has to
+// be kept is what has been added up so far and which passes it includes.
+// The scan is rewritten in full to a temporary file and renamed over the
+// old one.  The frames of a dynamic study go in a second file beside it, so
+// rewriting the scan leaves them alone.  A frame is written into its own
+// slot once it is finished and only then marked as done, so a half written
+// frame is never taken as finished.  Nothing is written on the processing
+// threads: the arrays are copied and handed to a single writer thread, and
+// a checkpoint is skipped while the last one is still being written.
+//
+// The files are named after a checksum of the options and the input
+// pixels, so a run only resumes from a checkpoint of the same job.  They
+// are deleted once the run has finished.  A run locks them while it uses
+// them, and a second run of the same job at the same time goes without
+// checkpoints rather than mix its writes with the first.
+//
+///////////////////////////////////////////////////////////////////////////////
+
+import ij.IJ;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+class scanCheckpoint {
+
+  // Time between checkpoints of the scan
+  static final long INTERVAL = TimeUnit.SECONDS.toNanos(30);
+  private static final long MAGIC = 0x46424e52434b5054L;  // "FBNRCKPT"
+  private static final int VERSION = 2;
+
+  private File file, framesFile;
+  private long key;
+  private int pixels, accumulators, frames, framePixels;
+  // Passes of the scan done for each block size
+  private boolean[][] passDone;
+  // Sizes of the filter maps, if there are any
+  private int[] mapShifts, mapBlocks;
+  // Frames of the result done, set once they are safely written
+  private boolean[] frameDone;
+  // Length of the scan, and of the header of the frames file where the
+  // frame bitmap ends and the frames follow
+  private long scanBytes, frameHeader;
+  // Passes finished since the scan was last saved
+  private boolean unsaved;
+  // Whether the frames file holds frames of this job, only touched by the
+  // writer thread once the run has started
+  private boolean framesValid;
+
+  // Lock on the files of the job, null if the run is not checkpointed
+  private FileChannel lockChannel;
+  private FileLock lock;
+
+  private ExecutorService writer;
+  private volatile boolean writing, failed, closed;
+  private long lastSave;
+
+  // Pixels is the length of each accumulator and framePixels the length of
+  // each frame of the result.  With no file the run is not checkpointed.
+  public scanCheckpoint(File file, long key, int[] passes, int pixels,
+          int accumulators, filterMap[] maps, int frames, int framePixels) {
+    this.file = file;
+    this.key = key;
+    this.pixels = pixels;
+    this.accumulators = accumulators;
+    this.frames = frames;
+    this.framePixels = framePixels;
+    lastSave = System.nanoTime();
+
+    scanBytes = 8 + 4 + 8 + 4;
+    passDone = new boolean[passes.length][];
+    for (int s = 0; s < passes.length; s++) {
+      passDone[s] = new boolean[passes[s]];
+      scanBytes += 4 + passes[s];
+    }
+    scanBytes += 5 * 8 + 4 + 4 + 4L * pixels * accumulators;
+    mapShifts = new int[maps.length];
+    mapBlocks = new int[maps.length];
+    for (int s = 0; s < maps.length; s++) {
+      if (maps[s] != null) {
+        mapShifts[s] = maps[s].change.length;
+        mapBlocks[s] = maps[s].change[0].length;
+      }
+      scanBytes += 8 + 4L * mapShifts[s] * mapBlocks[s];
+    }
+    frameHeader = 8 + 4 + 8 + 4 + 4 + frames;
+    frameDone = new boolean[frames];
+
+    writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FBNR checkpoint");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    if (file != null) {
+      framesFile = new File(file.getPath() + ".frames");
+      lock();
+    }
+  }
+
+  // Take the files of the job for this run, unless another run has them,
+  // in this JVM or another
+  private void lock() {
+    try {
+      lockChannel = FileChannel.open(lockFile().toPath(),
+              StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      try {
+        lock = lockChannel.tryLock();
+      } catch (OverlappingFileLockException e) {
+        lock = null;
+      }
+    } catch (IOException e) {
+      lock = null;
+    }
+    if (lock == null && lockChannel != null) {
+      try {
+        lockChannel.close();
+      } catch (IOException e) {
+        // Nothing was locked, so nothing is lost
+      }
+      lockChannel = null;
+    }
+  }
+
+  // Whether this run is checkpointed
+  public boolean isActive() {
+    return lock != null;
+  }
+
+  private File lockFile() {
+    return new File(file.getPath() + ".lock");
+  }
+
+  // Read back a checkpoint of the same job, if there is one, into the
+  // accumulators (each one value per pixel) and the filter maps.  Returns
+  // the run counts saved with it, or null if there is nothing to resume.
+  public long[] resume(float[][] pixAccumulators, filterMap[] maps) {
+    if (lock == null) {
+      return null;
+    }
+    long[] counts = resumeScan(pixAccumulators, maps);
+    if (counts == null) {
+      // Frames are only ever made from the filters of a saved scan
+      framesFile.delete();
+    } else {
+      resumeFrames();
+    }
+    return counts;
+  }
+
+  private long[] resumeScan(float[][] pixAccumulators, filterMap[] maps) {
+    ByteBuffer buffer = readHeader(file, scanBytes);
+    if (buffer == null || buffer.getLong() != MAGIC ||
+            buffer.getInt() != VERSION || buffer.getLong() != key ||
+            buffer.getInt() != passDone.length) {
+      return null;
+    }
+    // Check the whole layout before touching any of the accumulators
+    int start = buffer.position();
+    for (int s = 0; s < passDone.length; s++) {
+      int passes = buffer.getInt();
+      if (passes != passDone[s].length) {
+        return null;
+      }
+      buffer.position(buffer.position() + passes);
+    }
+    buffer.position(buffer.position() + 5 * 8);
+    if (buffer.getInt() != pixels || buffer.getInt() != accumulators) {
+      return null;
+    }
+    buffer.position(start);
+
+    for (int s = 0; s < passDone.length; s++) {
+      buffer.getInt();
+      for (int pass = 0; pass < passDone[s].length; pass++) {
+        passDone[s][pass] = buffer.get() != 0;
+      }
+    }
+    long[] counts = new long[5];
+    for (int c = 0; c < counts.length; c++) {
+      counts[c] = buffer.getLong();
+    }
+    buffer.getInt();
+    buffer.getInt();
+    for (int a = 0; a < accumulators; a++) {
+      buffer.asFloatBuffer().get(pixAccumulators[a]);
+      buffer.position(buffer.position() + 4 * pixels);
+    }
+    for (int s = 0; s < maps.length; s++) {
+      buffer.getInt();
+      buffer.getInt();
+      for (int shift = 0; shift < mapShifts[s]; shift++) {
+        buffer.asFloatBuffer().get(maps[s].change[shift]);
+        buffer.position(buffer.position() + 4 * mapBlocks[s]);
+      }
+    }
+    return counts;
+  }
+
+  // Pick up the frames already finished, if the frames file is of this job
+  private void resumeFrames() {
+    ByteBuffer buffer = readHeader(framesFile, frameHeader);
+    if (buffer == null || buffer.getLong() != MAGIC ||
+            buffer.getInt() != VERSION || buffer.getLong() != key ||
+            buffer.getInt() != frames || buffer.getInt() != framePixels) {
+      return;
+    }
+    framesValid = true;
+    for (int f = 0; f < frames; f++) {
+      frameDone[f] = buffer.get() != 0;
+    }
+  }
+
+  // The first bytes of a file, or null if it is shorter than that
+  private static ByteBuffer readHeader(File file, long bytes) {
+    if (!file.exists() || file.length() < bytes) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) bytes);
+    try {
+      FileChannel channel = FileChannel.open(file.toPath(),
+              StandardOpenOption.READ);
+      try {
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        }
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      return null;
+    }
+    buffer.flip();
+    return buffer.remaining() < bytes ? null : buffer;
+  }
+
+  public boolean passDone(int side, int pass) {
+    return passDone[side][pass];
+  }
+
+  public void passFinished(int side, int pass) {
+    passDone[side][pass] = true;
+    unsaved = true;
+  }
+
+  public int passesDone() {
+    int done = 0;
+    for (int s = 0; s < passDone.length; s++) {
+      for (int pass = 0; pass < passDone[s].length; pass++) {
+        done += passDone[s][pass] ? 1 : 0;
+      }
+    }
+    return done;
+  }
+
+  // Save the scan so far, if it is time to.  Nothing is saved if no pass
+  // has finished since the last save, as when the whole scan was resumed.
+  // The arrays are copied here and written out on the writer thread.
+  public void save(float[][] pixAccumulators, filterMap[] maps,
+          long[] counts, boolean force) {
+    long now = System.nanoTime();
+    if (lock == null || failed || !unsaved ||
+            (!force && (writing || now - lastSave < INTERVAL))) {
+      return;
+    }
+    lastSave = now;
+    unsaved = false;
+    final ByteBuffer buffer = ByteBuffer.allocate((int) scanBytes);
+    buffer.putLong(MAGIC).putInt(VERSION).putLong(key);
+    buffer.putInt(passDone.length);
+    for (int s = 0; s < passDone.length; s++) {
+      buffer.putInt(passDone[s].length);
+      for (int pass = 0; pass < passDone[s].length; pass++) {
+        buffer.put((byte) (passDone[s][pass] ? 1 : 0));
+      }
+    }
+    for (int c = 0; c < counts.length; c++) {
+      buffer.putLong(counts[c]);
+    }
+    buffer.putInt(pixels).putInt(accumulators);
+    for (int a = 0; a < accumulators; a++) {
+      putFloats(buffer, pixAccumulators[a]);
+    }
+    for (int s = 0; s < maps.length; s++) {
+      buffer.putInt(mapShifts[s]).putInt(mapBlocks[s]);
+      for (int shift = 0; shift < mapShifts[s]; shift++) {
+        putFloats(buffer, maps[s].change[shift]);
+      }
+    }
+    buffer.flip();
+
+    writing = true;
+    writer.execute(new Runnable() {
+
+      public void run() {
+        try {
+          if (closed) {
+            return;
+          }
+          File temp = new File(file.getPath() + ".tmp");
+          FileChannel channel = FileChannel.open(temp.toPath(),
+                  StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                  StandardOpenOption.TRUNCATE_EXISTING);
+          try {
+            while (buffer.hasRemaining()) {
+              channel.write(buffer);
+            }
+          } finally {
+            channel.close();
+          }
+          Files.move(temp.toPath(), file.toPath(),
+                  StandardCopyOption.REPLACE_EXISTING,
+                  StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+          writeFailed(e);
+        } finally {
+          writing = false;
+        }
+      }
+    });
+  }
+
+  public synchronized boolean frameDone(int frame) {
+    return frameDone[frame];
+  }
+
+  private synchronized void setFrameDone(int frame) {
+    frameDone[frame] = true;
+  }
+
+  // Read a finished frame back from the checkpoint
+  public boolean readFrame(int frame, float[] pixOut) {
+    ByteBuffer buffer = ByteBuffer.allocate(4 * framePixels);
+    try {
+      FileChannel channel = FileChannel.open(framesFile.toPath(),
+              StandardOpenOption.READ);
+      try {
+        long position = frameHeader + 4L * framePixels * frame;
+        while (buffer.hasRemaining() &&
+                channel.read(buffer, position + buffer.position()) >= 0) {
+        }
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    if (buffer.hasRemaining()) {
+      return false;
+    }
+    buffer.flip();
+    buffer.asFloatBuffer().get(pixOut);
+    return true;
+  }
+
+  // Write a finished frame into its slot, then mark it as done.  Safe to
+  // call from several threads.
+  public void frameFinished(final int frame, float[] pixOut) {
+    if (lock == null || failed) {
+      return;
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(4 * framePixels);
+    putFloats(buffer, pixOut);
+    buffer.flip();
+    writer.execute(new Runnable() {
+
+      public void run() {
+        if (closed) {
+          return;
+        }
+        try {
+          if (!framesValid) {
+            startFrames();
+          }
+          FileChannel channel = FileChannel.open(framesFile.toPath(),
+                  StandardOpenOption.WRITE);
+          try {
+            long position = frameHeader + 4L * framePixels * frame;
+            while (buffer.hasRemaining()) {
+              channel.write(buffer, position + buffer.position());
+            }
+            ByteBuffer done = ByteBuffer.wrap(new byte[]{1});
+            channel.write(done, frameHeader - frames + frame);
+          } finally {
+            channel.close();
+          }
+          setFrameDone(frame);
+        } catch (IOException e) {
+          writeFailed(e);
+        }
+      }
+    });
+  }
+
+  // Start a frames file of this job with no frames done, on the writer
+  // thread
+  private void startFrames() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate((int) frameHeader);
+    header.putLong(MAGIC).putInt(VERSION).putLong(key);
+    header.putInt(frames).putInt(framePixels);
+    header.position((int) frameHeader);
+    header.flip();
+    FileChannel channel = FileChannel.open(framesFile.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+    } finally {
+      channel.close();
+    }
+    framesValid = true;
+  }
+
+  // Wait for the checkpoints being written, then delete the files if the
+  // run has finished with them and let go of them.  Once the run has
+  // finished, checkpoints still queued are dropped, so none is written
+  // after the files are deleted.
+  public void close(boolean finished) {
+    if (finished) {
+      closed = true;
+    }
+    writer.shutdown();
+    boolean interrupted = false;
+    while (!writer.isTerminated()) {
+      try {
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (lock == null) {
+      return;
+    }
+    if (finished) {
+      file.delete();
+      framesFile.delete();
+      new File(file.getPath() + ".tmp").delete();
+    }
+    try {
+      lock.release();
+      lockChannel.close();
+    } catch (IOException e) {
+      // The lock goes when the JVM does in any case
+    }
+    lock = null;
+    if (finished) {
+      lockFile().delete();
+    }
+  }
+
+  private void writeFailed(IOException e) {
+    if (!failed) {
+      failed = true;
+      IJ.log("FBNR checkpoint could not be written: " + e);
+    }
+  }
+
+  private static void putFloats(ByteBuffer buffer, float[] values) {
+    buffer.asFloatBuffer().put(values);
+    buffer.position(buffer.position() + 4 * values.length);
+  }
+}
@@ -0,0 +1,244 @@
+package FBNR;
+
+///////////////////////////////////////////////////////////////////////////////
+// Sliding window Hartley transform of the processing blocks
+///////////////////////////////////////////////////////////////////////////////
+//
+// The FHT of a block is taken on the block mirrored out to twice its size
+// (see FFTFilter.tileMirror), so the spectrum is a linear function of the
+// block pixels.  Using cas(a + b) = cos(a) cas(b) + sin(a) cas(-b) the 2D
+// transform splits into a transform down each image column of a band of
+// rows, followed by a transform across the block.  The column transforms
+// are the same for every block position along the band, so they are done
+// once per band and moving the block along by one pixel only brings in one
+// new column.  The spectra of the blocks are kept, so every iteration of
+// the filter costs one inverse transform and no forward one.  Blocks are
+// transformed together, side by side in memory, see blockBatch.
+//
+// The mirroring means the spectrum of the block one pixel along is not a
+// phase shift of this one, so the transform across the block is still done
+// for each position.
+//
+// The image is padded all round (see FBNR_.padImage), so blocks over the
+// edge of the image read the padding and no position needs checking.  Bands
+// and columns are given in image coordinates.
+//
+///////////////////////////////////////////////////////////////////////////////
+
+class slidingHartley {
+
+  private int blockSide, fftSide, pad;
+  // Forward weights of block row l for frequency u, summed over the places
+  // the row appears in the mirrored array: [l * fftSide + u]
+  private double[] cosRow, sinRow;
+  // Forward weights of block column k for frequency v: [k * fftSide + v]
+  private double[] casCol, casMinusCol;
+  // Inverse weights at the pixels of the block itself
+  private double[] invCosRow, invSinRow, invCasCol, invCasMinusCol;
+  // Where each element of the filter comes from once the quadrants swap
+  private int[] swapIndex;
+  // Column transforms of the current band: [x * fftSide + u]
+  private double[] colCos, colSin;
+  // Workspace for the blocks side by side
+  private double[] cosBlock, sinBlock, filtered, sumCas, sumCasMinus;
+
+  public slidingHartley(int blockSide, int pad) {
+    this.blockSide = blockSide;
+    this.pad = pad;
+    fftSide = 2 * blockSide;
+    int fftSize = fftSide * fftSide;
+
+    cosRow = new double[blockSide * fftSide];
+    sinRow = new double[blockSide * fftSide];
+    casCol = new double[blockSide * fftSide];
+    casMinusCol = new double[blockSide * fftSide];
+    invCosRow = new double[blockSide * fftSide];
+    invSinRow = new double[blockSide * fftSide];
+    invCasCol = new double[blockSide * fftSide];
+    invCasMinusCol = new double[blockSide * fftSide];
+
+    // The block sits in the middle of the array, mirrored out either side
+    int offset = blockSide / 2;
+    for (int m = 0; m < fftSide; m++) {
+      int k = mirror(m - offset);
+      for (int u = 0; u < fftSide; u++) {
+        double angle = 2 * Math.PI * u * m / fftSide;
+        cosRow[k * fftSide + u] += Math.cos(angle);
+        sinRow[k * fftSide + u] += Math.sin(angle);
+        casCol[k * fftSide + u] += Math.cos(angle) + Math.sin(angle);
+        casMinusCol[k * fftSide + u] += Math.cos(angle) - Math.sin(angle);
+        if (m - offset == k) {
+          // Only the block itself is cropped out after the inverse
+          invCosRow[k * fftSide + u] = Math.cos(angle);
+          invSinRow[k * fftSide + u] = Math.sin(angle);
+          invCasCol[k * fftSide + u] = Math.cos(angle) + Math.sin(angle);
+          invCasMinusCol[k * fftSide + u] = Math.cos(angle) - Math.sin(angle);
+        }
+      }
+    }
+
+    // Quadrants of the filter are swapped, as it is easier to program filters
+    // to work on "edge" pixels representing high frequency data
+    swapIndex = new int[fftSize];
+    for (int r = 0; r < fftSide; r++) {
+      for (int c = 0; c < fftSide; c++) {
+        swapIndex[r * fftSide + c] = ((r + blockSide) % fftSide) * fftSide +
+                (c + blockSide) % fftSide;
+      }
+    }
+  }
+
+  // Pixel of the block found at position q of the mirrored array
+  private int mirror(int q) {
+    if (q < 0) {
+      return -1 - q;
+    } else if (q >= blockSide) {
+      return 2 * blockSide - 1 - q;
+    }
+    return q;
+  }
+
+  // Transform the columns of the padded image (width wide) down the band of
+  // rows starting at row j of the image.  Only the columns the blocks over
+  // the image can reach are needed.
+  public void setBand(float[] pixPadded, int width, int j) {
+    if (colCos == null || colCos.length < width * fftSide) {
+      colCos = new double[width * fftSide];
+      colSin = new double[width * fftSide];
+    }
+    for (int x = pad - blockSide + 1; x < width - pad + blockSide - 1; x++) {
+      int col = x * fftSide;
+      for (int u = 0; u < fftSide; u++) {
+        colCos[col + u] = 0;
+        colSin[col + u] = 0;
+      }
+      for (int l = 0; l < blockSide; l++) {
+        double value = pixPadded[x + (j + pad + l) * width];
+        if (value != 0) {
+          int row = l * fftSide;
+          for (int u = 0; u < fftSide; u++) {
+            colCos[col + u] += value * cosRow[row + u];
+            colSin[col + u] += value * sinRow[row + u];
+          }
+        }
+      }
+    }
+  }
+
+  // Ring of the filter that applies to each element of the spectrum, from
+  // the look up tables of FBNR_.setUpLookUpTables
+  public int[] spectrumRings(int[] refRow, int[] refCol) {
+    int[] filterRing = new int[fftSide * fftSide];
+    int k = 0;
+    int perimSide = fftSide - 1;
+    for (int ring = 0; ring < blockSide; ring++) {
+      for (int i = 0; i < 4 * perimSide; i++, k++) {
+        filterRing[refCol[k] + refRow[k] * fftSide] = ring;
+      }
+      perimSide = perimSide - 2;
+    }
+    int[] spectrumRing = new int[fftSide * fftSide];
+    for (int index = 0; index < spectrumRing.length; index++) {
+      spectrumRing[index] = filterRing[swapIndex[index]];
+    }
+    return spectrumRing;
+  }
+
+  // Transform across the blocks starting at the given columns of the
+  // current band.  The spectra are laid out coefficient by coefficient
+  // with the blocks side by side: [c * stride + b]
+  public void setBlocks(int[] columns, int count, double[] spectrum,
+          int stride) {
+    workspace(stride);
+    for (int c = 0; c < fftSide * fftSide; c++) {
+      for (int b = 0; b < count; b++) {
+        spectrum[c * stride + b] = 0;
+      }
+    }
+    for (int k = 0; k < blockSide; k++) {
+      for (int u = 0; u < fftSide; u++) {
+        for (int b = 0; b < count; b++) {
+          int col = (columns[b] + pad + k) * fftSide + u;
+          cosBlock[b] = colCos[col];
+          sinBlock[b] = colSin[col];
+        }
+        for (int v = 0; v < fftSide; v++) {
+          double cas = casCol[k * fftSide + v];
+          double casMinus = casMinusCol[k * fftSide + v];
+          int c = (u * fftSide + v) * stride;
+          for (int b = 0; b < count; b++) {
+            spectrum[c + b] += cosBlock[b] * cas + sinBlock[b] * casMinus;
+          }
+        }
+      }
+    }
+  }
+
+  // Filter the spectra of the first count blocks, each with its own filter
+  // held as one value per ring ([ring * stride + b]), and put the inverse
+  // transforms, multiplied by each block's scale, into the pixels of the
+  // blocks ([(k + l * blockSide) * stride + b])
+  public void filterBlocks(double[] spectrum, float[] ring,
+          int[] spectrumRing, double[] scale, int count, int stride,
+          float[] pixels) {
+    workspace(stride);
+    // Only the lanes in use, as few blocks may be left iterating
+    for (int i = 0; i < fftSide * blockSide; i++) {
+      for (int b = 0; b < count; b++) {
+        sumCas[i * stride + b] = 0;
+        sumCasMinus[i * stride + b] = 0;
+      }
+    }
+    // Inverse across the blocks first, only at the columns of the block
+    for (int u = 0; u < fftSide; u++) {
+      for (int v = 0; v < fftSide; v++) {
+        int c = u * fftSide + v;
+        int r = spectrumRing[c] * stride;
+        for (int b = 0; b < count; b++) {
+          filtered[b] = spectrum[c * stride + b] * ring[r + b];
+        }
+        for (int k = 0; k < blockSide; k++) {
+          double cas = invCasCol[k * fftSide + v];
+          double casMinus = invCasMinusCol[k * fftSide + v];
+          int sum = (u * blockSide + k) * stride;
+          for (int b = 0; b < count; b++) {
+            sumCas[sum + b] += filtered[b] * cas;
+            sumCasMinus[sum + b] += filtered[b] * casMinus;
+          }
+        }
+      }
+    }
+    // Then down the blocks, only at the rows of the block
+    double norm = 1.0 / (fftSide * fftSide);
+    for (int l = 0; l < blockSide; l++) {
+      for (int k = 0; k < blockSide; k++) {
+        for (int b = 0; b < count; b++) {
+          filtered[b] = 0;
+        }
+        for (int u = 0; u < fftSide; u++) {
+          double cos = invCosRow[l * fftSide + u];
+          double sin = invSinRow[l * fftSide + u];
+          int sum = (u * blockSide + k) * stride;
+          for (int b = 0; b < count; b++) {
+            filtered[b] += cos * sumCas[sum + b] + sin * sumCasMinus[sum + b];
+          }
+        }
+        int pixel = (k + l * blockSide) * stride;
+        for (int b = 0; b < count; b++) {
+          pixels[pixel + b] = (float) (norm * scale[b] * filtered[b]);
+        }
+      }
+    }
+  }
+
+  // Make sure the workspace holds enough blocks side by side
+  private void workspace(int stride) {
+    if (filtered == null || filtered.length < stride) {
+      cosBlock = new double[stride];
+      sinBlock = new double[stride];
+      filtered = new double[stride];
+      sumCas = new double[fftSide * blockSide * stride];
+      sumCasMinus = new double[fftSide * blockSide * stride];
+    }
+  }
+}